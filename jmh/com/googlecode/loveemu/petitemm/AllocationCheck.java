@@ -0,0 +1,172 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Allocation regression check, which measures bytes allocated per converted note
+ * on small reference songs and fails when it exceeds the checked-in budget.
+ * Only the conversion of MIDI events to MML events (PHASE_TICK_LOOP) is measured, so that parsing
+ * and post-processing do not hide the per-note paths, and the bytes per note are the difference
+ * between a reference song and the same song of double length, so that the setup of the conversion cancels out.
+ * Run it with: gradle checkAllocation
+ */
+public final class AllocationCheck {
+
+	/**
+	 * Reference songs to be measured, created by createReference().
+	 * They are smaller than the corpus profiles so that the check runs in seconds.
+	 */
+	private static final String[] REFERENCES = {"song", "format0", "time-signatures"};
+
+	/**
+	 * Length of the longer song compared with the reference song.
+	 */
+	private static final int LENGTH_MULTIPLIER = 2;
+
+	/**
+	 * Option sets to be measured.
+	 */
+	private static final String[] OPTION_SETS = {"default", "complex"};
+
+	/**
+	 * Number of untimed conversions before the measurement, so that the JIT compiler
+	 * has applied escape analysis to the hot paths.
+	 */
+	private static final int WARMUP_COUNT = 5;
+
+	/**
+	 * Number of measured conversions.
+	 */
+	private static final int MEASUREMENT_COUNT = 5;
+
+	private AllocationCheck() {
+	}
+
+	/**
+	 * Measure the allocation of each profile and compare it with the budget.
+	 *
+	 * @param args Path of the budget file.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage: AllocationCheck <budget.properties>");
+			System.exit(1);
+		}
+
+		Properties budget = new Properties();
+		try (InputStream in = new FileInputStream(args[0])) {
+			budget.load(in);
+		}
+
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			System.err.println("Thread allocation counter is not supported by this JVM.");
+			System.exit(1);
+		}
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+
+		boolean success = true;
+		for (String reference : REFERENCES) {
+			byte[] midiData = createReference(reference, 1);
+			byte[] longMidiData = createReference(reference, LENGTH_MULTIPLIER);
+			for (String optionSet : OPTION_SETS) {
+				String key = reference + "." + optionSet;
+				long[] shortResult = measure(threadBean, createConverter(optionSet), midiData);
+				long[] longResult = measure(threadBean, createConverter(optionSet), longMidiData);
+				long bytesPerNote = (longResult[0] - shortResult[0]) / Math.max(longResult[1] - shortResult[1], 1);
+
+				String budgetValue = budget.getProperty(key);
+				if (budgetValue == null) {
+					System.out.format("%-28s %10d bytes/note, no budget%n", key, bytesPerNote);
+					success = false;
+					continue;
+				}
+
+				long budgetBytes = Long.parseLong(budgetValue.trim());
+				boolean withinBudget = bytesPerNote <= budgetBytes;
+				System.out.format("%-28s %10d bytes/note, budget %d%s%n", key, bytesPerNote, budgetBytes,
+						withinBudget ? "" : " EXCEEDED");
+				if (!withinBudget) {
+					success = false;
+				}
+			}
+		}
+
+		if (!success) {
+			System.out.println("Allocation exceeds the budget in " + args[0]
+					+ ", reduce it or update the budget if the increase is intended.");
+		}
+		System.exit(success ? 0 : 1);
+	}
+
+	private static byte[] createReference(String reference, int lengthMultiplier)
+			throws InvalidMidiDataException, IOException {
+		switch (reference) {
+		case "song":
+			return MidiCorpusGenerator.toBytes(MidiCorpusGenerator.createSong(480, 4, 8, 16 * lengthMultiplier, 1L), 1);
+		case "format0":
+			return MidiCorpusGenerator.toBytes(MidiCorpusGenerator.createMixedChannels(480, 8 * lengthMultiplier, 1L),
+					0);
+		case "time-signatures":
+			return MidiCorpusGenerator.toBytes(
+					MidiCorpusGenerator.createTimeSignatureChanges(480, 2, 32 * lengthMultiplier, 1L), 1);
+		default:
+			throw new IllegalArgumentException("Unknown reference " + reference);
+		}
+	}
+
+	private static Midi2MML createConverter(String optionSet) {
+		Midi2MML converter = new Midi2MML();
+		switch (optionSet) {
+		case "default":
+			break;
+		case "complex":
+			converter.setComplexSetup(true);
+			converter.setPutSpaces(true);
+			converter.setTargetResolution(48);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown option set " + optionSet);
+		}
+		return converter;
+	}
+
+	/**
+	 * Measure the bytes allocated by the tick loop of a conversion.
+	 *
+	 * @return Allocated bytes and number of notes, averaged over the measured conversions.
+	 */
+	private static long[] measure(com.sun.management.ThreadMXBean threadBean, Midi2MML converter, byte[] midiData)
+			throws IOException, InvalidMidiDataException {
+		for (int i = 0; i < WARMUP_COUNT; i++) {
+			converter.convert(midiData);
+		}
+
+		// tracks are converted on the calling thread, as the converter uses a single thread by default
+		final long threadId = Thread.currentThread().getId();
+		final long[] allocatedBytes = new long[2];
+		converter.setProgressListener(new ConversionProgressListener() {
+			@Override
+			public void phaseFinished(int phase, long nanos) {
+				if (phase == ConversionStats.PHASE_FIX_EVENTS) {
+					// the tick loop starts when the previous phase is finished
+					allocatedBytes[0] = threadBean.getThreadAllocatedBytes(threadId);
+				} else if (phase == ConversionStats.PHASE_TICK_LOOP) {
+					allocatedBytes[1] += threadBean.getThreadAllocatedBytes(threadId) - allocatedBytes[0];
+				}
+			}
+		});
+
+		long noteCount = 0;
+		for (int i = 0; i < MEASUREMENT_COUNT; i++) {
+			noteCount += converter.convert(midiData).getStats().getNoteCount();
+		}
+		return new long[] { allocatedBytes[1] / MEASUREMENT_COUNT, noteCount / MEASUREMENT_COUNT };
+	}
+}
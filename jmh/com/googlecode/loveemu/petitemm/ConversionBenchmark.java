@@ -0,0 +1,101 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end benchmarks of the conversion pipeline, by song shape.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+
+	@Param({"1", "8", "32"})
+	public int trackCount;
+
+	@Param({"4", "16"})
+	public int notesPerMeasure;
+
+	@Param({"32", "256"})
+	public int measures;
+
+	private Midi2MML converter;
+
+	private byte[] midiData;
+
+	private Sequence seq;
+
+	private MMLConversion conversion;
+
+	private String rawMML;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		converter = new Midi2MML();
+		converter.setComplexSetup(true);
+		converter.setPutSpaces(true);
+		converter.setTargetResolution(48);
+
+		midiData = MidiCorpusGenerator.toBytes(
+				MidiCorpusGenerator.createSong(480, trackCount, notesPerMeasure, measures, 1L), 1);
+		seq = MidiSystem.getSequence(new ByteArrayInputStream(midiData));
+
+		conversion = converter.convert(seq);
+		rawMML = conversion.writeMacros().append(conversion.getMML()).toString();
+	}
+
+	/**
+	 * Midi2MML.writeMML and writeMacros, as the legacy API does.
+	 */
+	@Benchmark
+	public StringBuilder writeMML() throws Exception {
+		Midi2MML legacy = new Midi2MML(converter);
+		StringBuilder writer = new StringBuilder();
+		legacy.writeMML(seq, writer);
+		return legacy.writeMacros().append(writer);
+	}
+
+	/**
+	 * Parse, convert and post-process from the file content.
+	 */
+	@Benchmark
+	public String convertBytes() throws Exception {
+		return converter.convert(midiData).getText();
+	}
+
+	/**
+	 * Parse the standard MIDI file.
+	 */
+	@Benchmark
+	public Sequence parse() throws Exception {
+		return MidiSystem.getSequence(new ByteArrayInputStream(midiData));
+	}
+
+	/**
+	 * Remove unused macros from the final text, which was PetiteMM.postProcess.
+	 */
+	@Benchmark
+	public String postProcess() {
+		return conversion.postProcess(rawMML);
+	}
+}
@@ -0,0 +1,328 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Seeded generator of synthetic MIDI files, for benchmarks and scaling tests.
+ * The same profile and seed always produce the same file.
+ */
+public final class MidiCorpusGenerator {
+
+	/**
+	 * Available corpus profiles, one for each scaling axis.
+	 */
+	public static final String[] PROFILES = {"song", "long", "high-resolution", "many-tracks", "dense-cc", "format0",
+			"time-signatures", "sparse"};
+
+	/**
+	 * Time signatures used by the time-signatures profile. (numerator, log2(denominator))
+	 */
+	private static final int[][] TIME_SIGNATURES = {{4, 2}, {3, 2}, {5, 3}, {7, 3}, {2, 1}, {6, 3}};
+
+	private MidiCorpusGenerator() {
+		super();
+	}
+
+	/**
+	 * Write all profiles to a directory.
+	 *
+	 * @param args Output directory and optional seed.
+	 * @throws Exception throw if a file cannot be written.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Syntax: MidiCorpusGenerator <output directory> [seed]");
+			System.exit(1);
+		}
+
+		File dir = new File(args[0]);
+		long seed = (args.length >= 2) ? Long.parseLong(args[1]) : 1L;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+
+		for (String profile : PROFILES) {
+			File file = new File(dir, profile + ".mid");
+			MidiSystem.write(generate(profile, seed), getFileType(profile), file);
+			System.out.println(file.getPath());
+		}
+	}
+
+	/**
+	 * Generate a sequence of the specified profile.
+	 *
+	 * @param profile Profile name, one of PROFILES.
+	 * @param seed    Random seed.
+	 * @return New sequence.
+	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
+	 */
+	public static Sequence generate(String profile, long seed) throws InvalidMidiDataException {
+		switch (profile) {
+		case "song":
+			return createSong(480, 8, 8, 64, seed);
+		case "long":
+			// about 20 minutes at 120 BPM
+			return createSong(480, 4, 8, 600, seed);
+		case "high-resolution":
+			return createSong(3840, 4, 8, 64, seed);
+		case "many-tracks":
+			return createSong(480, 40, 8, 64, seed);
+		case "dense-cc":
+			return createDenseControlChanges(480, 4, 16, 10, seed);
+		case "format0":
+			return createMixedChannels(480, 64, seed);
+		case "time-signatures":
+			return createTimeSignatureChanges(480, 4, 256, seed);
+		case "sparse":
+			return createSparse(480, 16, 1L << 20, seed);
+		default:
+			throw new IllegalArgumentException("Unknown profile [" + profile + "]");
+		}
+	}
+
+	/**
+	 * Get the SMF format for the specified profile.
+	 *
+	 * @param profile Profile name, one of PROFILES.
+	 * @return SMF format, 0 or 1.
+	 */
+	public static int getFileType(String profile) {
+		return "format0".equals(profile) ? 0 : 1;
+	}
+
+	/**
+	 * Create a sequence of monophonic tracks with random notes and control changes.
+	 *
+	 * @param resolution      Ticks per quarter note.
+	 * @param trackCount      Number of tracks.
+	 * @param notesPerMeasure Number of notes in a 4/4 measure.
+	 * @param measures        Length of the song in measures.
+	 * @param seed            Random seed.
+	 * @return New sequence.
+	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
+	 */
+	public static Sequence createSong(int resolution, int trackCount, int notesPerMeasure, int measures, long seed)
+			throws InvalidMidiDataException {
+		Random random = new Random(seed);
+		Sequence seq = new Sequence(Sequence.PPQ, resolution);
+		long measureLength = resolution * 4L;
+		long endTick = measureLength * measures;
+
+		createConductorTrack(seq, endTick, random);
+		for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+			Track track = seq.createTrack();
+			addNotes(track, trackIndex % MidiUtil.MIDI_MAX_CHANNELS, 0, endTick, measureLength / notesPerMeasure,
+					random);
+		}
+		return seq;
+	}
+
+	/**
+	 * Create a sequence with volume, expression and pan automation at a short interval.
+	 *
+	 * @param resolution Ticks per quarter note.
+	 * @param trackCount Number of tracks.
+	 * @param measures   Length of the song in measures.
+	 * @param interval   Interval of control changes in ticks.
+	 * @param seed       Random seed.
+	 * @return New sequence.
+	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
+	 */
+	public static Sequence createDenseControlChanges(int resolution, int trackCount, int measures, int interval,
+			long seed) throws InvalidMidiDataException {
+		Random random = new Random(seed);
+		Sequence seq = new Sequence(Sequence.PPQ, resolution);
+		long measureLength = resolution * 4L;
+		long endTick = measureLength * measures;
+
+		createConductorTrack(seq, endTick, random);
+		for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+			Track track = seq.createTrack();
+			int channel = trackIndex % MidiUtil.MIDI_MAX_CHANNELS;
+			addNotes(track, channel, 0, endTick, resolution, random);
+
+			// slow sine ramps, as drawn in a DAW
+			double phase = random.nextDouble() * Math.PI * 2;
+			for (long tick = 0; tick < endTick; tick += interval) {
+				double angle = phase + (Math.PI * 2 * tick) / (measureLength * 2);
+				int value = (int) Math.round(63.5 + 63.5 * Math.sin(angle));
+				track.add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 0x07, value), tick));
+				track.add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 0x0B, 127 - value),
+						tick));
+				track.add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 0x0A, value), tick));
+			}
+		}
+		return seq;
+	}
+
+	/**
+	 * Create a single track sequence which mixes all 16 channels, as SMF format 0.
+	 *
+	 * @param resolution Ticks per quarter note.
+	 * @param measures   Length of the song in measures.
+	 * @param seed       Random seed.
+	 * @return New sequence.
+	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
+	 */
+	public static Sequence createMixedChannels(int resolution, int measures, long seed)
+			throws InvalidMidiDataException {
+		Random random = new Random(seed);
+		Sequence seq = new Sequence(Sequence.PPQ, resolution);
+		long measureLength = resolution * 4L;
+		long endTick = measureLength * measures;
+
+		Track track = createConductorTrack(seq, endTick, random);
+		for (int channel = 0; channel < MidiUtil.MIDI_MAX_CHANNELS; channel++) {
+			addNotes(track, channel, 0, endTick, measureLength / (1 << random.nextInt(4)), random);
+		}
+		return seq;
+	}
+
+	/**
+	 * Create a sequence which changes the time signature every few measures.
+	 *
+	 * @param resolution Ticks per quarter note.
+	 * @param trackCount Number of tracks.
+	 * @param measures   Length of the song in measures.
+	 * @param seed       Random seed.
+	 * @return New sequence.
+	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
+	 */
+	public static Sequence createTimeSignatureChanges(int resolution, int trackCount, int measures, long seed)
+			throws InvalidMidiDataException {
+		Random random = new Random(seed);
+		Sequence seq = new Sequence(Sequence.PPQ, resolution);
+		Track conductor = seq.createTrack();
+		conductor.add(new MidiEvent(newTempoMessage(500000), 0));
+
+		// time signatures must be located at measure boundaries
+		long tick = 0;
+		int measure = 0;
+		while (measure < measures) {
+			int[] timeSignature = TIME_SIGNATURES[random.nextInt(TIME_SIGNATURES.length)];
+			conductor.add(new MidiEvent(newMetaMessage(MidiUtil.META_TIME_SIGNATURE,
+					new byte[]{(byte) timeSignature[0], (byte) timeSignature[1], 24, 8}), tick));
+
+			int count = Math.min(1 + random.nextInt(4), measures - measure);
+			tick += new MidiTimeSignature(timeSignature[0], timeSignature[1]).getLength(resolution) * (long) count;
+			measure += count;
+		}
+		long endTick = tick;
+
+		for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+			Track track = seq.createTrack();
+			addNotes(track, trackIndex % MidiUtil.MIDI_MAX_CHANNELS, 0, endTick, resolution / 2, random);
+		}
+		return seq;
+	}
+
+	/**
+	 * Create a sequence with a few notes separated by huge gaps.
+	 *
+	 * @param resolution Ticks per quarter note.
+	 * @param noteCount  Number of notes.
+	 * @param gap        Gap between notes in ticks.
+	 * @param seed       Random seed.
+	 * @return New sequence.
+	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
+	 */
+	public static Sequence createSparse(int resolution, int noteCount, long gap, long seed)
+			throws InvalidMidiDataException {
+		Random random = new Random(seed);
+		Sequence seq = new Sequence(Sequence.PPQ, resolution);
+		Track track = seq.createTrack();
+		track.add(new MidiEvent(newMetaMessage(MidiUtil.META_TIME_SIGNATURE, new byte[]{4, 2, 24, 8}), 0));
+		track.add(new MidiEvent(newTempoMessage(500000), 0));
+
+		long tick = 0;
+		for (int i = 0; i < noteCount; i++) {
+			int key = 36 + random.nextInt(48);
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, key, 100), tick));
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, key, 0), tick + resolution));
+			tick += gap + random.nextInt(resolution);
+		}
+		return seq;
+	}
+
+	/**
+	 * Write a sequence as a standard MIDI file.
+	 *
+	 * @param seq      Sequence to be written.
+	 * @param fileType SMF format, 0 or 1.
+	 * @return Content of the standard MIDI file.
+	 * @throws IOException throw if the sequence cannot be written.
+	 */
+	public static byte[] toBytes(Sequence seq, int fileType) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MidiSystem.write(seq, fileType, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Create a track which has the time signature and tempo changes.
+	 */
+	private static Track createConductorTrack(Sequence seq, long endTick, Random random)
+			throws InvalidMidiDataException {
+		Track conductor = seq.createTrack();
+		conductor.add(new MidiEvent(newMetaMessage(MidiUtil.META_TIME_SIGNATURE, new byte[]{4, 2, 24, 8}), 0));
+
+		// a tempo change every 8 measures
+		long interval = seq.getResolution() * 4L * 8;
+		for (long tick = 0; tick < endTick; tick += interval) {
+			conductor.add(new MidiEvent(newTempoMessage(400000 + random.nextInt(200000)), tick));
+		}
+		return conductor;
+	}
+
+	/**
+	 * Add monophonic notes on a grid, with some humanized timing and control changes.
+	 */
+	private static void addNotes(Track track, int channel, long startTick, long endTick, long step, Random random)
+			throws InvalidMidiDataException {
+		step = Math.max(1, step);
+		track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, random.nextInt(128), 0),
+				startTick));
+
+		for (long tick = startTick; tick + step <= endTick; tick += step) {
+			if (random.nextInt(8) == 0) {
+				continue; // rest
+			}
+
+			long length = Math.max(1, step - random.nextInt((int) Math.max(1, step / 4)));
+			int key = 36 + random.nextInt(48);
+			if (random.nextInt(4) == 0) {
+				track.add(new MidiEvent(
+						new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 0x07, 64 + random.nextInt(64)), tick));
+			}
+			if (random.nextInt(8) == 0) {
+				track.add(new MidiEvent(
+						new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 0x0A, random.nextInt(128)), tick));
+			}
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, key, 1 + random.nextInt(127)),
+					tick));
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, channel, key, 0), tick + length));
+		}
+	}
+
+	private static MetaMessage newTempoMessage(int usLenOfQN) throws InvalidMidiDataException {
+		return newMetaMessage(MidiUtil.META_TEMPO,
+				new byte[]{(byte) (usLenOfQN >> 16), (byte) (usLenOfQN >> 8), (byte) usLenOfQN});
+	}
+
+	private static MetaMessage newMetaMessage(int type, byte[] data) throws InvalidMidiDataException {
+		MetaMessage message = new MetaMessage();
+		message.setMessage(type, data, data.length);
+		return message;
+	}
+}
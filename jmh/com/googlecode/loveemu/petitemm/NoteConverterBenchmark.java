@@ -0,0 +1,103 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the note length tables and the quantizer, by timebase.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NoteConverterBenchmark {
+
+	/**
+	 * Number of note lengths quantized per invocation.
+	 */
+	private static final int LENGTH_COUNT = 1024;
+
+	@Param({"48", "96", "480", "960"})
+	public int tpqn;
+
+	private MMLSymbol mmlSymbol;
+
+	private MMLNoteConverter noteConv;
+
+	private long[] minLengths;
+
+	private long[] maxLengths;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		mmlSymbol = new MMLSymbol();
+		noteConv = new MMLNoteConverter(mmlSymbol, tpqn, Midi2MML.DEFAULT_MAX_DOT_COUNT, false);
+
+		// note lengths up to two whole notes, followed by gaps up to a whole note
+		Random random = new Random(1);
+		minLengths = new long[LENGTH_COUNT];
+		maxLengths = new long[LENGTH_COUNT];
+		for (int i = 0; i < LENGTH_COUNT; i++) {
+			minLengths[i] = 1 + random.nextInt(tpqn * 8);
+			maxLengths[i] = minLengths[i] + random.nextInt(tpqn * 4 + 1);
+		}
+	}
+
+	/**
+	 * Construction of the note tables, done once per conversion.
+	 */
+	@Benchmark
+	public MMLNoteConverter construct() {
+		return new MMLNoteConverter(mmlSymbol, tpqn, Midi2MML.DEFAULT_MAX_DOT_COUNT, false);
+	}
+
+	/**
+	 * Quantization with an empty memo table, as at the start of a conversion.
+	 */
+	@Benchmark
+	public void quantizeCold(Blackhole blackhole) {
+		MMLQuantizer quantizer = new MMLQuantizer(noteConv, Midi2MML.DEFAULT_MAX_DOT_COUNT,
+				Midi2MML.DEFAULT_QUANTIZE_PRECISION, true, null);
+		for (int i = 0; i < LENGTH_COUNT; i++) {
+			blackhole.consume(quantizer.quantize(minLengths[i], maxLengths[i]));
+		}
+	}
+
+	/**
+	 * Quantization of repeated lengths, as in the middle of a conversion.
+	 */
+	@Benchmark
+	public void quantizeWarm(QuantizerState state, Blackhole blackhole) {
+		for (int i = 0; i < LENGTH_COUNT; i++) {
+			blackhole.consume(state.quantizer.quantize(minLengths[i], maxLengths[i]));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class QuantizerState {
+
+		MMLQuantizer quantizer;
+
+		@Setup(Level.Trial)
+		public void setUp(NoteConverterBenchmark benchmark) {
+			quantizer = new MMLQuantizer(benchmark.noteConv, Midi2MML.DEFAULT_MAX_DOT_COUNT,
+					Midi2MML.DEFAULT_QUANTIZE_PRECISION, true, null);
+		}
+	}
+}
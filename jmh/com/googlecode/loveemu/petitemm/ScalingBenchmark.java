@@ -0,0 +1,73 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the conversion stages on each profile of the synthetic corpus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScalingBenchmark {
+
+	@Param({"song", "long", "high-resolution", "many-tracks", "dense-cc", "format0", "time-signatures", "sparse"})
+	public String profile;
+
+	private Midi2MML converter;
+
+	private byte[] midiData;
+
+	private Sequence seq;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		converter = new Midi2MML();
+		midiData = MidiCorpusGenerator.toBytes(MidiCorpusGenerator.generate(profile, 1L),
+				MidiCorpusGenerator.getFileType(profile));
+	}
+
+	/**
+	 * fixEvents modifies the sequence, so each invocation needs a fresh copy.
+	 */
+	@Setup(Level.Invocation)
+	public void parse() throws Exception {
+		seq = MidiUtil.separateMixedChannel(MidiSystem.getSequence(new ByteArrayInputStream(midiData)));
+	}
+
+	@Benchmark
+	public MMLConversion convert() throws Exception {
+		return converter.convert(seq);
+	}
+
+	@Benchmark
+	public Sequence fixEvents() {
+		converter.fixEvents(seq, null);
+		return seq;
+	}
+
+	@Benchmark
+	public List<MidiTimeSignature> getMidiTimeSignatures() throws Exception {
+		return converter.getMidiTimeSignatures(seq, null);
+	}
+}
@@ -0,0 +1,77 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of Midi2MMLTrack.writeMML, which renders the MML events of a track.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrackRenderBenchmark {
+
+	@Param({"1000", "10000"})
+	public int noteCount;
+
+	/**
+	 * One volume macro for every n notes.
+	 */
+	@Param({"1", "8"})
+	public int notesPerVolumeChange;
+
+	private MMLSymbol mmlSymbol;
+
+	private List<MMLEvent> events;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		mmlSymbol = new MMLSymbol();
+		MMLNoteConverter noteConv = new MMLNoteConverter(mmlSymbol, 48, false);
+
+		Random random = new Random(1);
+		events = new ArrayList<>();
+		events.add(new MMLEvent(mmlSymbol.getOctave(), new String[]{"4"}));
+		for (int i = 0; i < noteCount; i++) {
+			if (i % notesPerVolumeChange == 0) {
+				events.add(new MMLEvent(mmlSymbol.getVolumeMacro(),
+						new String[]{String.format("%02XQ%02XE7FP40 ", random.nextInt(128), random.nextInt(128))}));
+			}
+			if (random.nextInt(4) == 0) {
+				events.add(new MMLEvent(random.nextBoolean() ? mmlSymbol.getOctaveUp() : mmlSymbol.getOctaveDown()));
+			}
+			events.add(new MMLEvent(noteConv.getNote(12 * (1 + random.nextInt(4)), random.nextInt(12))));
+			events.add(new MMLEvent(" "));
+			if (i % 8 == 7) {
+				events.add(new MMLEvent(Midi2MML.LINE_SEPARATOR));
+			}
+		}
+	}
+
+	@Benchmark
+	public StringBuilder writeMML() {
+		Midi2MMLTrack track = new Midi2MMLTrack(mmlSymbol);
+		track.addAll(events);
+		StringBuilder writer = new StringBuilder();
+		track.writeMML(writer);
+		return writer;
+	}
+}
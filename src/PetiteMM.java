@@ -2,17 +2,46 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.sound.midi.InvalidMidiDataException;
-import javax.sound.midi.MidiSystem;
 
+import com.googlecode.loveemu.petitemm.CancellationToken;
+import com.googlecode.loveemu.petitemm.ConversionCancelledException;
+import com.googlecode.loveemu.petitemm.ConversionProgressListener;
+import com.googlecode.loveemu.petitemm.ConversionStats;
+import com.googlecode.loveemu.petitemm.FileConversionEvent;
+import com.googlecode.loveemu.petitemm.MMLConversion;
 import com.googlecode.loveemu.petitemm.Midi2MML;
 
 public class PetiteMM {
+
+	// default number of warmup conversions for the benchmark mode
+	private static final int DEFAULT_BENCH_WARMUP = 5;
+
+	// quiet time after the last change of a file before it is reconverted in the watch mode
+	private static final long WATCH_DEBOUNCE_MILLIS = 300;
 	
 	// list of available option switches
 	private static final String[] argsAvail = {
@@ -30,7 +59,32 @@ public class PetiteMM {
 			"--no-expression", "", "Ignore Expression messages (Control Change message 11) when computing volumes.",
 			"--multiply-volumes", "<factor>", "Multiply all the volumes by a given amount.",
 			"--no-pan-correction", "", "Don't adjust volumes based on the panning value.",
-			"--use-ticks", "", "Convert note lengths to MML tick notation."};
+			"--use-ticks", "", "Convert note lengths to MML tick notation.",
+			"--use-loops", "", "Write consecutive repeats of notes and commands as loops. ([...]n)",
+			"--use-label-loops", "", "Write phrases repeated across tracks once as label loops. ((n)[...])",
+			"--size-comment", "", "Write the estimated compiled size of each track as a comment.",
+			"--thin-cc", "<error>", "Drop volume/pan/expression changes within the given value error of the last one.",
+			"--thin-cc-interval", "<ticks>", "Drop changes of a controller sooner than the given MML ticks with --thin-cc.",
+			"--tempo-tolerance", "<tempo>", "Merge tempo ramps whose N-SPC tempo changes within the given value. (default=0)",
+			"--max-size", "<bytes>", "Search coarser settings for the most faithful MML which fits the estimated size.",
+			"--threads", "<count>", "Convert the tracks of a file in parallel with the given number of threads. (default=1)",
+			"--range", "<first>:<last>", "Convert only the given measures, measures start from 1.",
+			"--stats", "<format>", "Print timings and counters of each conversion, format is text or json.",
+			"--trace", "<count>", "Keep the last <count> trace records of each conversion and print them to stderr.",
+			"--progress", "", "Show a progress line of the current file on stderr.",
+			"--timeout", "<seconds>", "Stop converting a file when it takes longer than the given time.",
+			"--bench", "<count>", "Measure <count> conversions of each file without writing the output.",
+			"--bench-warmup", "<count>", "Number of untimed conversions before --bench. (default=" + DEFAULT_BENCH_WARMUP + ")",
+			"--watch", "<dir>", "Keep converting .mid files of the directory whenever they are changed."};
+
+	// format of the conversion statistics, null to disable them
+	private static String statsFormat = null;
+
+	// time limit of each conversion in milliseconds, 0 for no limit
+	private static long timeoutMillis = 0;
+
+	// progress line on stderr, null to disable it
+	private static ProgressLine progressLine = null;
 
 	/**
 	 * Removes the extension from a filename.
@@ -65,6 +119,9 @@ public class PetiteMM {
 		boolean showAbout = false;
 		Midi2MML opt = new Midi2MML();
 		String mmlFileName = null;
+		int benchIterations = 0;
+		int benchWarmup = DEFAULT_BENCH_WARMUP;
+		File watchDir = null;
 
 		int argi = 0;
 		
@@ -132,6 +189,94 @@ public class PetiteMM {
 			case "--use-ticks":
 				opt.setUseTicks(true);
 				break;
+			case "--use-loops":
+				opt.setUseLoops(true);
+				break;
+			case "--use-label-loops":
+				opt.setUseLabelLoops(true);
+				break;
+			case "--size-comment":
+				opt.setSizeComment(true);
+				break;
+			case "--thin-cc":
+				checkArgumentCount(args, argi);
+				opt.setCcThinningError(Integer.parseInt(args[++argi]));
+				break;
+			case "--thin-cc-interval":
+				checkArgumentCount(args, argi);
+				opt.setCcThinningInterval(Integer.parseInt(args[++argi]));
+				break;
+			case "--tempo-tolerance":
+				checkArgumentCount(args, argi);
+				opt.setTempoTolerance(Integer.parseInt(args[++argi]));
+				break;
+			case "--max-size":
+				checkArgumentCount(args, argi);
+				opt.setMaxSize(Long.parseLong(args[++argi]));
+				if (opt.getMaxSize() <= 0) {
+					throw new IllegalArgumentException("Maximum size must be greater than 0.");
+				}
+				break;
+			case "--threads":
+				checkArgumentCount(args, argi);
+				opt.setThreadCount(Integer.parseInt(args[++argi]));
+				break;
+			case "--range":
+				checkArgumentCount(args, argi);
+				String[] measures = args[++argi].split(":", -1);
+				if (measures.length != 2) {
+					throw new IllegalArgumentException("Measure range must be <first>:<last>.");
+				}
+				int firstMeasure = Integer.parseInt(measures[0]);
+				int lastMeasure = Integer.parseInt(measures[1]);
+				if (firstMeasure <= 0) {
+					throw new IllegalArgumentException("First measure must be greater than 0.");
+				}
+				opt.setMeasureRange(firstMeasure, lastMeasure);
+				break;
+			case "--trace":
+				checkArgumentCount(args, argi);
+				opt.setTraceCapacity(Integer.parseInt(args[++argi]));
+				break;
+			case "--progress":
+				progressLine = new ProgressLine();
+				opt.setProgressListener(progressLine);
+				break;
+			case "--timeout":
+				checkArgumentCount(args, argi);
+				timeoutMillis = (long) (Double.parseDouble(args[++argi]) * 1000);
+				if (timeoutMillis <= 0) {
+					throw new IllegalArgumentException("Timeout must be greater than 0.");
+				}
+				break;
+			case "--bench":
+				checkArgumentCount(args, argi);
+				benchIterations = Integer.parseInt(args[++argi]);
+				if (benchIterations <= 0) {
+					throw new IllegalArgumentException("Benchmark iteration count must be greater than 0.");
+				}
+				break;
+			case "--bench-warmup":
+				checkArgumentCount(args, argi);
+				benchWarmup = Integer.parseInt(args[++argi]);
+				if (benchWarmup < 0) {
+					throw new IllegalArgumentException("Benchmark warmup count must not be negative.");
+				}
+				break;
+			case "--watch":
+				checkArgumentCount(args, argi);
+				watchDir = new File(args[++argi]);
+				if (!watchDir.isDirectory()) {
+					throw new IllegalArgumentException(watchDir + " is not a directory.");
+				}
+				break;
+			case "--stats":
+				checkArgumentCount(args, argi);
+				statsFormat = args[++argi];
+				if (!statsFormat.equals("text") && !statsFormat.equals("json")) {
+					throw new IllegalArgumentException("Unsupported stats format [" + statsFormat + "]");
+				}
+				break;
 			default:
 				throw new IllegalArgumentException("Unsupported option [" + args[argi] + "]");
 			}
@@ -139,12 +284,13 @@ public class PetiteMM {
 		}
 
 		// show about the program and exit, if needed
-		if (argi >= args.length || showAbout) {
+		if ((argi >= args.length && watchDir == null) || showAbout) {
 			System.out.println(Midi2MML.NAME + " " + Midi2MML.VERSION + " by " + Midi2MML.AUTHOR);
 			System.out.println(Midi2MML.WEBSITE);
 			System.out.println();
 
 			System.out.println("Syntax: PetiteMM <options> input.mid [input2.mid ...]");
+			System.out.println("        PetiteMM <options> --watch dir");
 			if (argsAvail.length > 0)
 				System.out.println("Options:");
 			for (int i = 0; i < argsAvail.length / 3; i++) {
@@ -154,11 +300,19 @@ public class PetiteMM {
 			System.exit(1);
 		}
 		
+		if (watchDir != null) {
+			if (argi < args.length || mmlFileName != null || benchIterations > 0 || progressLine != null) {
+				throw new IllegalArgumentException("The --watch option cannot be used with input files, -o, --bench or --progress!");
+			}
+			System.exit(watch(watchDir.toPath(), opt) ? 0 : 1);
+		}
+
 		if(mmlFileName != null && args.length - argi > 1) {
 			throw new IllegalArgumentException("The -o option can only be used with a single input file!");
 		}
 		
 		boolean success = true;
+		int firstFileIndex = argi;
 		
 		while(argi < args.length) {
 			String midiFileName = args[argi];
@@ -166,7 +320,18 @@ public class PetiteMM {
 			if(mmlFileName == null) {
 				currentFileName = removeExtension(args[argi]) + ".txt";
 			}
-			boolean fileSuccess = convert(midiFileName, currentFileName, opt);
+			if (progressLine != null) {
+				progressLine.startFile(midiFileName, argi - firstFileIndex + 1, args.length - firstFileIndex);
+			}
+			boolean fileSuccess;
+			if (benchIterations > 0) {
+				fileSuccess = bench(midiFileName, opt, benchIterations, benchWarmup);
+			} else {
+				fileSuccess = convert(midiFileName, currentFileName, opt);
+			}
+			if (progressLine != null) {
+				progressLine.clear();
+			}
 			if(!fileSuccess) {
 				success = false;
 			}
@@ -177,96 +342,405 @@ public class PetiteMM {
 	}
 	
 	private static boolean convert(String midiFileName, String mmlFileName, Midi2MML options) {
+		return convert(midiFileName, null, mmlFileName, options);
+	}
+
+	/**
+	 * Convert a MIDI file and write the MML file.
+	 *
+	 * @param midiData Content of the MIDI file which has been read already, null to read the file.
+	 */
+	private static boolean convert(String midiFileName, byte[] midiData, String mmlFileName, Midi2MML options) {
 		File midiFile = new File(midiFileName);
 		File mmlFile = new File(mmlFileName);
-		Midi2MML converter = new Midi2MML(options);
 		boolean success = false;
+		FileConversionEvent event = new FileConversionEvent();
+		event.begin();
 
-		try (FileWriter fileWriter = new FileWriter(mmlFile)){
-			if (!midiFile.exists()) {
-				throw new FileNotFoundException(midiFile.getName() + " (The system cannot find the file specified)");
+		try {
+			if (midiData == null) {
+				if (!midiFile.exists()) {
+					throw new FileNotFoundException(midiFile.getName() + " (The system cannot find the file specified)");
+				}
+				midiData = Files.readAllBytes(midiFile.toPath());
+			}
+			event.inputBytes = midiData.length;
+			CancellationToken token = (timeoutMillis != 0)
+					? new CancellationToken(timeoutMillis, TimeUnit.MILLISECONDS)
+					: null;
+			MMLConversion conversion = options.convert(midiData, token);
+			if (options.getMaxSize() != Midi2MML.MAX_SIZE_UNLIMITED) {
+				printChosenOptions(midiFileName, conversion);
+			}
+			String mml = conversion.getText();
+			long startTime = System.nanoTime();
+			writeText(mmlFile, mml);
+			conversion.getStats().addPhaseTime(ConversionStats.PHASE_WRITE, System.nanoTime() - startTime);
+			if (statsFormat != null) {
+				printStats(midiFileName, conversion.getStats());
 			}
-			StringBuilder writer = new StringBuilder();
-			converter.writeMML(MidiSystem.getSequence(midiFile), writer);
-			StringBuilder mml = converter.writeMacros();
-			mml.append(writer.toString());
-			fileWriter.write(postProcess(mml, options));
+			if (conversion.getTrace() != null) {
+				StringBuilder trace = new StringBuilder();
+				conversion.getTrace().dump(trace);
+				System.err.print(trace);
+			}
+			event.outputBytes = mml.length();
 			success = true;
 		} catch (InvalidMidiDataException | IOException e) {
 			e.printStackTrace();
+		} catch (ConversionCancelledException e) {
+			System.err.println(midiFileName + ": " + e.getMessage());
+			if (statsFormat != null && e.getStats() != null) {
+				printStats(midiFileName, e.getStats());
+			}
+		} catch (IllegalArgumentException e) {
+			// options which do not fit the file, such as a measure range after its end
+			System.err.println(midiFileName + ": " + e.getMessage());
+		}
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.fileName = midiFileName;
+			event.success = success;
+			event.commit();
 		}
 		
 		return success;
 	}
 	
-	private static void checkArgumentCount(String[] args, int argi) {
-		if (argi + 1 >= args.length) {
-			throw new IllegalArgumentException("Too few arguments for " + args[argi]);
+	/**
+	 * Write a text to a temporary file next to the file, and move it over the file,
+	 * so that a failed or cancelled conversion never leaves the previous file truncated.
+	 */
+	private static void writeText(File file, String text) throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			try (FileWriter fileWriter = new FileWriter(tempFile)) {
+				fileWriter.write(text);
+			}
+			try {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tempFile.toPath());
 		}
 	}
 
-	private static String postProcess(StringBuilder mml, Midi2MML options) {
-		String output = mml.toString();
-		
-		if(options.getNoControlChanges()) {
-			return output;
+	private static void printChosenOptions(String midiFileName, MMLConversion conversion) {
+		Midi2MML options = conversion.getOptions();
+		StringBuilder sb = new StringBuilder();
+		sb.append(midiFileName).append(": ").append(conversion.getStats().getEstimatedSize()).append(" bytes with");
+		sb.append(" --quantize-precision ").append(options.getQuantizePrecision());
+		sb.append(" --dots ").append(options.getMaxDots());
+		sb.append(" --timebase ").append(options.getTargetResolution());
+		if (options.getTripletPreference()) {
+			sb.append(" --use-triplet");
+		}
+		if (options.getUseTicks()) {
+			sb.append(" --use-ticks");
+		}
+		System.err.println(sb);
+	}
+	
+	private static boolean watch(Path dir, Midi2MML options) {
+		// content hash of each file at its last successful conversion, updated by the workers
+		Map<Path, byte[]> hashes = new ConcurrentHashMap<>();
+		// files waiting for the debounce, and their deadline in System.nanoTime()
+		Map<Path, Long> pendingFiles = new HashMap<>();
+		Map<Path, Future<?>> runningFiles = new HashMap<>();
+		ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+		try (WatchService watchService = dir.getFileSystem().newWatchService()) {
+			dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			scheduleMidiFiles(dir, pendingFiles, true);
+			System.out.println("Watching " + dir + " for changes of .mid files, press Ctrl+C to stop.");
+
+			while (true) {
+				WatchKey key;
+				if (pendingFiles.isEmpty()) {
+					key = watchService.take();
+				} else {
+					long wait = Long.MAX_VALUE;
+					long now = System.nanoTime();
+					for (long deadline : pendingFiles.values()) {
+						wait = Math.min(wait, deadline - now);
+					}
+					key = watchService.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+				}
+
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							scheduleMidiFiles(dir, pendingFiles, false);
+						} else {
+							Path file = dir.resolve((Path) event.context());
+							if (isMidiFile(file)) {
+								pendingFiles.put(file, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WATCH_DEBOUNCE_MILLIS));
+							}
+						}
+					}
+					if (!key.reset()) {
+						System.err.println(dir + " is no longer accessible.");
+						return false;
+					}
+				}
+
+				// submit files which have not been changed for a while,
+				// but never convert the same file twice at the same time
+				long now = System.nanoTime();
+				runningFiles.values().removeIf(Future::isDone);
+				Iterator<Map.Entry<Path, Long>> iterator = pendingFiles.entrySet().iterator();
+				while (iterator.hasNext()) {
+					Map.Entry<Path, Long> entry = iterator.next();
+					if (entry.getValue() - now > 0) {
+						continue;
+					}
+					Path file = entry.getKey();
+					if (runningFiles.containsKey(file)) {
+						entry.setValue(now + TimeUnit.MILLISECONDS.toNanos(WATCH_DEBOUNCE_MILLIS));
+						continue;
+					}
+					iterator.remove();
+					runningFiles.put(file, workers.submit(() -> reconvert(file, options, hashes)));
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
+		} finally {
+			workers.shutdown();
 		}
+	}
 
-		// If there's some unused macro left, remove it
-		List<String> matches = new ArrayList<>();
-		Matcher matcher = Pattern.compile("\".*=").matcher(output);
-		while (matcher.find()) {
-			String match = matcher.group().replaceAll("\\s+", "");
-			match = match.substring(1, match.length() - 1);
-			int count = output.split(match, -1).length - 1;
-			if (count <= 1 && !matches.contains(match)) {
-				matches.add(match);
+	private static void scheduleMidiFiles(Path dir, Map<Path, Long> pendingFiles, boolean outdatedOnly) throws IOException {
+		long now = System.nanoTime();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				if (!isMidiFile(file)) {
+					continue;
+				}
+				if (outdatedOnly) {
+					Path mmlFile = Paths.get(removeExtension(file.toString()) + ".txt");
+					if (Files.exists(mmlFile)
+							&& Files.getLastModifiedTime(mmlFile).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+						continue;
+					}
+				}
+				pendingFiles.put(file, now);
 			}
 		}
-		for (String match : matches) {
-			output = output.replaceAll("\"" + match + ".*=.*\"\\n", "");
+	}
+
+	private static boolean isMidiFile(Path file) {
+		return file.getFileName().toString().toLowerCase().endsWith(".mid");
+	}
+
+	private static void reconvert(Path file, Midi2MML options, Map<Path, byte[]> hashes) {
+		String midiFileName = file.toString();
+		// the same bytes are hashed and converted, as the file can be changed again meanwhile
+		byte[] midiData;
+		byte[] hash;
+		try {
+			midiData = Files.readAllBytes(file);
+			hash = MessageDigest.getInstance("SHA-256").digest(midiData);
+		} catch (IOException e) {
+			// the file has been removed or renamed since the change
+			System.err.println(midiFileName + ": " + e.getMessage());
+			return;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
 		}
-		
-		// If all pan values are the same, just remove them from macro names
-		matches.clear();
-		matcher = Pattern.compile("V..Q..E..P..").matcher(output);
-		while (matcher.find()) {
-			String match = matcher.group().substring(9);
-			if (!matches.contains(match)) {
-				matches.add(match);
+		// skip the file if only its timestamp has been changed
+		if (Arrays.equals(hash, hashes.get(file))) {
+			return;
+		}
+
+		long startTime = System.nanoTime();
+		if (convert(midiFileName, midiData, removeExtension(midiFileName) + ".txt", options)) {
+			// a failed conversion is retried at the next change, even if the content is the same
+			hashes.put(file, hash);
+			System.out.format("%s: converted in %.3f ms%n", midiFileName, (System.nanoTime() - startTime) / 1000000.0);
+		}
+	}
+
+	private static boolean bench(String midiFileName, Midi2MML options, int iterations, int warmup) {
+		byte[] midiData;
+		try {
+			midiData = Files.readAllBytes(new File(midiFileName).toPath());
+			for (int i = 0; i < warmup; i++) {
+				options.convert(midiData);
 			}
+		} catch (InvalidMidiDataException | IOException e) {
+			e.printStackTrace();
+			return false;
 		}
-		if (matches.size() == 1) {
-			output = output.replaceAll("(V..Q..E..)(P..)", "$1");
+
+		// allocation counter of the current thread, if the JVM supports it.
+		// --threads and --max-size convert on pools whose threads end with each conversion,
+		// and their allocation cannot be counted, so it is not reported rather than reported too low.
+		boolean otherThreads = options.getThreadCount() > 1 || options.getMaxSize() != Midi2MML.MAX_SIZE_UNLIMITED;
+		com.sun.management.ThreadMXBean threadBean = null;
+		if (!otherThreads && ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+			threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			if (!threadBean.isThreadAllocatedMemorySupported() || !threadBean.isThreadAllocatedMemoryEnabled()) {
+				threadBean = null;
+			}
 		}
+		long threadId = Thread.currentThread().getId();
 
-		// If all expression values are the same, just remove them from macro names
-		matches.clear();
-		matcher = Pattern.compile("V..Q..E..").matcher(output);
-		while (matcher.find()) {
-			String match = matcher.group().substring(6);
-			if (!matches.contains(match)) {
-				matches.add(match);
+		long[] latencies = new long[iterations];
+		long noteCount = 0;
+		long allocatedBytes = (threadBean != null) ? threadBean.getThreadAllocatedBytes(threadId) : 0;
+		try {
+			for (int i = 0; i < iterations; i++) {
+				long startTime = System.nanoTime();
+				MMLConversion conversion = options.convert(midiData);
+				latencies[i] = System.nanoTime() - startTime;
+				noteCount = conversion.getStats().getNoteCount();
 			}
+		} catch (InvalidMidiDataException | IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		if (threadBean != null) {
+			allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+		}
+
+		long totalTime = 0;
+		for (long latency : latencies) {
+			totalTime += latency;
+		}
+		Arrays.sort(latencies);
+
+		System.out.format("%s: %d iterations, %d warmup, %d notes%n", midiFileName, iterations, warmup, noteCount);
+		System.out.format("  latency    min %.3f ms, p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+				latencies[0] / 1000000.0, percentile(latencies, 50) / 1000000.0,
+				percentile(latencies, 95) / 1000000.0, percentile(latencies, 99) / 1000000.0,
+				latencies[iterations - 1] / 1000000.0);
+		System.out.format("  throughput %.0f notes/s%n", noteCount * iterations / (totalTime / 1000000000.0));
+		if (threadBean != null) {
+			System.out.format("  allocated  %d bytes/conversion%n", allocatedBytes / iterations);
+		} else if (otherThreads) {
+			System.out.format("  allocated  n/a (conversions run on other threads)%n");
+		} else {
+			System.out.format("  allocated  n/a%n");
+		}
+		return true;
+	}
+
+	/**
+	 * Get a percentile by the nearest-rank method.
+	 * 
+	 * @param sortedValues
+	 *            values sorted in ascending order
+	 * @param percent
+	 *            percentile rank, from 1 to 100
+	 * @return the value at the rank
+	 */
+	private static long percentile(long[] sortedValues, int percent) {
+		int rank = (int) Math.ceil(sortedValues.length * percent / 100.0);
+		return sortedValues[Math.max(rank, 1) - 1];
+	}
+
+	private static void printStats(String midiFileName, ConversionStats stats) {
+		if (statsFormat.equals("json")) {
+			// one object per line, so that multiple files can be processed line by line
+			String escapedName = midiFileName.replace("\\", "\\\\").replace("\"", "\\\"");
+			System.out.println("{\"file\":\"" + escapedName + "\",\"stats\":" + stats.toJSON() + "}");
+		} else {
+			System.out.println(midiFileName + ":");
+			System.out.print(stats.toText());
+		}
+	}
+
+	/**
+	 * Compact progress line of the current file, rewritten in place on stderr.
+	 */
+	private static class ProgressLine implements ConversionProgressListener {
+
+		// minimum interval between redraws in nanoseconds
+		private static final long REDRAW_INTERVAL = 100000000L;
+
+		private String prefix = "";
+		private String phaseName = "";
+		private String tickProgress = "";
+		private String trackProgress = "";
+		private int finishedTracks = 0;
+		private int lastLength = 0;
+		private long lastRedrawTime = 0;
+
+		void startFile(String fileName, int fileIndex, int fileCount) {
+			prefix = "[" + fileIndex + "/" + fileCount + "] " + fileName + ": ";
+			phaseName = ConversionStats.getPhaseName(ConversionStats.PHASE_PARSE);
+			tickProgress = "";
+			trackProgress = "";
+			finishedTracks = 0;
+			redraw(true);
 		}
-		if (matches.size() == 1) {
-			output = output.replaceAll("(V..Q..)(E..)", "$1");
+
+		void clear() {
+			StringBuilder sb = new StringBuilder("\r");
+			for (int i = 0; i < lastLength; i++) {
+				sb.append(' ');
+			}
+			sb.append('\r');
+			System.err.print(sb);
+			System.err.flush();
+			lastLength = 0;
 		}
 
-		// If all velocity values are the same, just remove them from macro names
-		matches.clear();
-		matcher = Pattern.compile("V..Q..").matcher(output);
-		while (matcher.find()) {
-			String match = matcher.group().substring(3);
-			if (!matches.contains(match)) {
-				matches.add(match);
+		@Override
+		public void phaseFinished(int phase, long nanos) {
+			if (phase + 1 < ConversionStats.PHASE_COUNT) {
+				phaseName = ConversionStats.getPhaseName(phase + 1);
+				tickProgress = "";
+				trackProgress = "";
+				redraw(false);
 			}
 		}
-		if (matches.size() == 1) {
-			output = output.replaceAll("(V..)(Q..)", "$1");
+
+		@Override
+		public void tickProgress(long tick, long totalTicks) {
+			tickProgress = String.format(" %d/%d ticks (%d%%)", tick, totalTicks,
+					totalTicks > 0 ? tick * 100 / totalTicks : 100);
+			redraw(false);
+		}
+
+		@Override
+		public void trackFinished(int trackIndex, int trackCount) {
+			finishedTracks++;
+			trackProgress = " " + finishedTracks + "/" + trackCount + " tracks";
+			redraw(false);
 		}
 
-		return output;
+		private void redraw(boolean force) {
+			long now = System.nanoTime();
+			if (!force && now - lastRedrawTime < REDRAW_INTERVAL) {
+				return;
+			}
+			lastRedrawTime = now;
+
+			String line = prefix + phaseName + tickProgress + trackProgress;
+			StringBuilder sb = new StringBuilder("\r").append(line);
+			for (int i = line.length(); i < lastLength; i++) {
+				sb.append(' ');
+			}
+			System.err.print(sb);
+			System.err.flush();
+			lastLength = line.length();
+		}
+	}
+
+	private static void checkArgumentCount(String[] args, int argi) {
+		if (argi + 1 >= args.length) {
+			throw new IllegalArgumentException("Too few arguments for " + args[argi]);
+		}
 	}
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,106 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token to stop a conversion from another thread, or when a deadline has passed.
+ * The converter checks the token periodically in its long-running loops,
+ * and throws ConversionCancelledException when the conversion must stop.
+ */
+public class CancellationToken {
+
+	/**
+	 * true if cancel() has been called.
+	 */
+	private volatile boolean cancelled = false;
+
+	/**
+	 * true if the token has a deadline.
+	 */
+	private final boolean hasDeadline;
+
+	/**
+	 * Deadline in System.nanoTime() units.
+	 */
+	private final long deadline;
+
+	/**
+	 * Token which also cancels this token, null if none.
+	 */
+	private final CancellationToken parent;
+
+	/**
+	 * Construct a new token without deadline, which is cancelled only by cancel().
+	 */
+	public CancellationToken() {
+		this.hasDeadline = false;
+		this.deadline = 0;
+		this.parent = null;
+	}
+
+	/**
+	 * Construct a new token which is cancelled after the given timeout from now.
+	 * 
+	 * @param timeout Time limit of the conversion.
+	 * @param unit Unit of the timeout.
+	 */
+	public CancellationToken(long timeout, TimeUnit unit) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Timeout must not be negative.");
+		}
+		this.hasDeadline = true;
+		this.deadline = System.nanoTime() + unit.toNanos(timeout);
+		this.parent = null;
+	}
+
+	/**
+	 * Construct a new token which can be cancelled by itself, and is also cancelled with the parent token.
+	 * 
+	 * @param parent Parent token, null for a token without deadline.
+	 */
+	CancellationToken(CancellationToken parent) {
+		this.hasDeadline = parent != null && parent.hasDeadline;
+		this.deadline = (parent != null) ? parent.deadline : 0;
+		this.parent = parent;
+	}
+
+	/**
+	 * Request the conversion to stop. It can be called from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Returns true if cancel() has been called.
+	 * 
+	 * @return true if the token is cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled || (parent != null && parent.isCancelled());
+	}
+
+	/**
+	 * Returns true if the deadline has passed.
+	 * 
+	 * @return true if the deadline has passed, false if the token has no deadline.
+	 */
+	public boolean isDeadlineExceeded() {
+		return hasDeadline && System.nanoTime() - deadline >= 0;
+	}
+
+	/**
+	 * Throw an exception if the conversion must stop.
+	 * 
+	 * @param stats Statistics of the conversion so far, null if not available.
+	 * @throws ConversionCancelledException if the token is cancelled or the deadline has passed.
+	 */
+	void check(ConversionStats stats) {
+		if (isCancelled()) {
+			throw new ConversionCancelledException("Conversion is cancelled.", false, stats);
+		}
+		if (isDeadlineExceeded()) {
+			throw new ConversionCancelledException("Conversion deadline is exceeded.", true, stats);
+		}
+	}
+}
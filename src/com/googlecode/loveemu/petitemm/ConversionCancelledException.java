@@ -0,0 +1,50 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Thrown when a conversion is stopped by a CancellationToken.
+ */
+public class ConversionCancelledException extends CancellationException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * true if the conversion is stopped by the deadline, false if by cancel().
+	 */
+	private final boolean deadlineExceeded;
+
+	/**
+	 * Statistics of the conversion until it is stopped.
+	 */
+	private transient ConversionStats stats;
+
+	ConversionCancelledException(String message, boolean deadlineExceeded, ConversionStats stats) {
+		super(message);
+		this.deadlineExceeded = deadlineExceeded;
+		this.stats = stats;
+	}
+
+	/**
+	 * Returns true if the conversion is stopped by the deadline.
+	 * 
+	 * @return true if the deadline has passed, false if the token is cancelled.
+	 */
+	public boolean isDeadlineExceeded() {
+		return deadlineExceeded;
+	}
+
+	/**
+	 * Get statistics of the conversion until it is stopped.
+	 * Phases which are not finished have no elapsed time.
+	 * 
+	 * @return Partial statistics of the conversion, null if not available.
+	 */
+	public ConversionStats getStats() {
+		return stats;
+	}
+
+	void setStats(ConversionStats stats) {
+		this.stats = stats;
+	}
+}
@@ -0,0 +1,36 @@
+package com.googlecode.loveemu.petitemm;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for a conversion of a sequence, emitted by Midi2MML.convert().
+ */
+@Name("petitemm.Conversion")
+@Label("Conversion")
+@Category("PetiteMM")
+@Description("Conversion of a MIDI sequence to MML text")
+class ConversionEvent extends jdk.jfr.Event {
+
+	@Label("Track Count")
+	int trackCount;
+
+	@Label("MIDI Events")
+	long midiEvents;
+
+	@Label("Notes")
+	long notes;
+
+	@Label("MML Events")
+	long mmlEvents;
+
+	@Label("Macros")
+	long macros;
+
+	@Label("Output Size")
+	@DataAmount
+	long outputBytes;
+}
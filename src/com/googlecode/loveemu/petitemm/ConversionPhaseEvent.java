@@ -0,0 +1,27 @@
+package com.googlecode.loveemu.petitemm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for a phase of a conversion, see ConversionStats for the phases.
+ */
+@Name("petitemm.ConversionPhase")
+@Label("Conversion Phase")
+@Category("PetiteMM")
+@Description("Phase of a MIDI to MML conversion")
+class ConversionPhaseEvent extends jdk.jfr.Event {
+
+	@Label("Phase")
+	String phase;
+
+	@Label("MIDI Events")
+	@Description("Number of MIDI events, 0 if not counted yet")
+	long midiEvents;
+
+	@Label("Notes")
+	@Description("Number of MIDI notes, 0 if not counted yet")
+	long notes;
+}
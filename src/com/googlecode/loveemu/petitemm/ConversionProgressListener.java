@@ -0,0 +1,38 @@
+package com.googlecode.loveemu.petitemm;
+
+/**
+ * Receives the progress of conversions, see Midi2MML.setProgressListener().
+ * Methods are called on the converting thread, so a listener shared by many
+ * threads must be thread-safe, and it should return quickly.
+ */
+public interface ConversionProgressListener {
+
+	/**
+	 * Called when a phase of a conversion is finished.
+	 *
+	 * @param phase Phase number, see ConversionStats.
+	 * @param nanos Elapsed time of the phase in nanoseconds.
+	 */
+	default void phaseFinished(int phase, long nanos) {
+	}
+
+	/**
+	 * Called periodically while MIDI events are converted to MML events.
+	 * Tracks are converted one by one or in parallel, so the ticks are summed over the tracks.
+	 * Calls are rate-limited, and the last call reports tick == totalTicks.
+	 *
+	 * @param tick Converted ticks of all tracks.
+	 * @param totalTicks Sum of the tick of the last event of each track.
+	 */
+	default void tickProgress(long tick, long totalTicks) {
+	}
+
+	/**
+	 * Called when all MIDI events of a track are converted.
+	 *
+	 * @param trackIndex Track number.
+	 * @param trackCount Number of tracks. (after splitting channels)
+	 */
+	default void trackFinished(int trackIndex, int trackCount) {
+	}
+}
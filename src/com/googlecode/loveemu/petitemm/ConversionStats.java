@@ -0,0 +1,479 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Counters and elapsed times of a single MIDI to MML conversion.
+ * Times are measured by System.nanoTime() once per phase, never per event,
+ * so collecting them costs nothing noticeable. Each phase is also recorded
+ * as a Flight Recorder event when the recording is enabled.
+ */
+public class ConversionStats {
+
+	/**
+	 * Phase for parsing the MIDI file. (MidiSystem.getSequence)
+	 */
+	public static final int PHASE_PARSE = 0;
+
+	/**
+	 * Phase for overriding the input resolution. (MidiUtil.assumeResolution)
+	 */
+	public static final int PHASE_ASSUME_RESOLUTION = 1;
+
+	/**
+	 * Phase for splitting tracks by channel. (MidiUtil.separateMixedChannel)
+	 */
+	public static final int PHASE_SEPARATE_MIXED_CHANNEL = 2;
+
+	/**
+	 * Phase for extracting a measure range. (MidiUtil.extractRange)
+	 */
+	public static final int PHASE_EXTRACT_RANGE = 3;
+
+	/**
+	 * Phase for changing the resolution to the target resolution. (MidiUtil.changeResolution)
+	 */
+	public static final int PHASE_CHANGE_RESOLUTION = 4;
+
+	/**
+	 * Phase for thinning dense control change curves. (MidiUtil.thinControlChanges)
+	 */
+	public static final int PHASE_THIN_CONTROL_CHANGES = 5;
+
+	/**
+	 * Phase for merging tempo events into a global tempo map. (MidiTempoMap)
+	 */
+	public static final int PHASE_BUILD_TEMPO_MAP = 6;
+
+	/**
+	 * Phase for collecting MIDI notes. (Midi2MML.getMidiNotes)
+	 */
+	public static final int PHASE_GET_MIDI_NOTES = 7;
+
+	/**
+	 * Phase for collecting time signatures. (Midi2MML.getMidiTimeSignatures)
+	 */
+	public static final int PHASE_GET_MIDI_TIME_SIGNATURES = 8;
+
+	/**
+	 * Phase for reordering simultaneous events. (Midi2MML.fixEvents)
+	 */
+	public static final int PHASE_FIX_EVENTS = 9;
+
+	/**
+	 * Phase for converting MIDI events to MML events, tick by tick.
+	 */
+	public static final int PHASE_TICK_LOOP = 10;
+
+	/**
+	 * Phase for rendering MML events of each track to text.
+	 */
+	public static final int PHASE_RENDER_TRACKS = 11;
+
+	/**
+	 * Phase for writing the header and macro definitions. (MMLConversion.writeMacros)
+	 */
+	public static final int PHASE_WRITE_MACROS = 12;
+
+	/**
+	 * Phase for removing unused macros from the final MML.
+	 */
+	public static final int PHASE_POST_PROCESS = 13;
+
+	/**
+	 * Phase for writing the final MML to the destination, recorded by the caller.
+	 */
+	public static final int PHASE_WRITE = 14;
+
+	/**
+	 * Number of phases.
+	 */
+	public static final int PHASE_COUNT = 15;
+
+	/**
+	 * Phase names, indexed by phase.
+	 */
+	private static final String[] PHASE_NAMES = { "parse", "assumeResolution", "separateMixedChannel", "extractRange",
+			"changeResolution", "thinControlChanges", "buildTempoMap",
+			"getMidiNotes", "getMidiTimeSignatures", "fixEvents", "tickLoop", "renderTracks",
+			"writeMacros", "postProcess", "write" };
+
+	/**
+	 * Elapsed time of each phase in nanoseconds.
+	 */
+	private long[] phaseTimes = new long[PHASE_COUNT];
+
+	/**
+	 * Number of MIDI events after preprocessing.
+	 */
+	private long midiEventCount;
+
+	/**
+	 * Number of control changes removed by thinning.
+	 */
+	private long droppedControlChangeCount;
+
+	/**
+	 * Number of tempo events removed by the tempo map.
+	 */
+	private long droppedTempoChangeCount;
+
+	/**
+	 * Number of MIDI notes.
+	 */
+	private long noteCount;
+
+	/**
+	 * Number of MML events generated for all tracks.
+	 */
+	private long mmlEventCount;
+
+	/**
+	 * Number of macros defined before removing unused ones.
+	 */
+	private long macroCount;
+
+	/**
+	 * Size of the final MML in bytes.
+	 */
+	private long outputBytes;
+
+	/**
+	 * Number of label loops written for phrases shared by tracks.
+	 */
+	private long phraseCount;
+
+	/**
+	 * Compiled bytes saved by the label loops.
+	 */
+	private long phraseSavedBytes;
+
+	/**
+	 * Estimated size of the compiled MML in bytes.
+	 */
+	private long estimatedSize;
+
+	/**
+	 * Estimated size of each compiled track in bytes, by track number.
+	 */
+	private Map<Integer, Long> estimatedTrackSizes = Collections.emptyMap();
+
+	/**
+	 * Flight Recorder event of the current phase.
+	 */
+	private ConversionPhaseEvent phaseEvent;
+
+	/**
+	 * Get the name of a phase.
+	 *
+	 * @param phase Phase number.
+	 * @return Name of the phase.
+	 */
+	public static String getPhaseName(int phase) {
+		return PHASE_NAMES[phase];
+	}
+
+	/**
+	 * Get elapsed time of a phase.
+	 *
+	 * @param phase Phase number.
+	 * @return Elapsed time in nanoseconds, 0 if the phase is not processed.
+	 */
+	public long getPhaseTime(int phase) {
+		return phaseTimes[phase];
+	}
+
+	/**
+	 * Add elapsed time to a phase.
+	 * Callers can use it to record phases done outside of the converter, such as PHASE_WRITE.
+	 *
+	 * @param phase Phase number.
+	 * @param nanos Elapsed time in nanoseconds.
+	 */
+	public void addPhaseTime(int phase, long nanos) {
+		phaseTimes[phase] += nanos;
+	}
+
+	/**
+	 * Start a phase.
+	 *
+	 * @return Value of System.nanoTime() at the start of the phase.
+	 */
+	long startPhase() {
+		phaseEvent = new ConversionPhaseEvent();
+		phaseEvent.begin();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Finish a phase and start the next one.
+	 *
+	 * @param phase Phase number to be finished.
+	 * @param startTime Value of startPhase() or endPhase() when the phase has started.
+	 * @return Value of System.nanoTime() at the end of the phase.
+	 */
+	long endPhase(int phase, long startTime) {
+		long endTime = System.nanoTime();
+		phaseTimes[phase] += endTime - startTime;
+
+		phaseEvent.end();
+		if (phaseEvent.shouldCommit()) {
+			phaseEvent.phase = PHASE_NAMES[phase];
+			phaseEvent.midiEvents = midiEventCount;
+			phaseEvent.notes = noteCount;
+			phaseEvent.commit();
+		}
+		phaseEvent = new ConversionPhaseEvent();
+		phaseEvent.begin();
+		return endTime;
+	}
+
+	/**
+	 * Get the total elapsed time of all phases.
+	 *
+	 * @return Elapsed time in nanoseconds.
+	 */
+	public long getTotalTime() {
+		long total = 0;
+		for (long time : phaseTimes) {
+			total += time;
+		}
+		return total;
+	}
+
+	/**
+	 * Get number of MIDI events after preprocessing.
+	 *
+	 * @return Number of MIDI events.
+	 */
+	public long getMidiEventCount() {
+		return midiEventCount;
+	}
+
+	void setMidiEventCount(long midiEventCount) {
+		this.midiEventCount = midiEventCount;
+	}
+
+	/**
+	 * Get number of control changes removed by thinning, they are not counted in the MIDI events.
+	 *
+	 * @return Number of control changes, 0 if the thinning is disabled.
+	 */
+	public long getDroppedControlChangeCount() {
+		return droppedControlChangeCount;
+	}
+
+	void setDroppedControlChangeCount(long droppedControlChangeCount) {
+		this.droppedControlChangeCount = droppedControlChangeCount;
+	}
+
+	/**
+	 * Get number of tempo events removed because they do not change the N-SPC tempo enough,
+	 * they are not counted in the MIDI events.
+	 *
+	 * @return Number of tempo events.
+	 */
+	public long getDroppedTempoChangeCount() {
+		return droppedTempoChangeCount;
+	}
+
+	void setDroppedTempoChangeCount(long droppedTempoChangeCount) {
+		this.droppedTempoChangeCount = droppedTempoChangeCount;
+	}
+
+	/**
+	 * Get number of MIDI notes.
+	 *
+	 * @return Number of MIDI notes.
+	 */
+	public long getNoteCount() {
+		return noteCount;
+	}
+
+	void setNoteCount(long noteCount) {
+		this.noteCount = noteCount;
+	}
+
+	/**
+	 * Get number of MML events generated for all tracks.
+	 *
+	 * @return Number of MML events.
+	 */
+	public long getMMLEventCount() {
+		return mmlEventCount;
+	}
+
+	void setMMLEventCount(long mmlEventCount) {
+		this.mmlEventCount = mmlEventCount;
+	}
+
+	/**
+	 * Get number of macros defined before removing unused ones.
+	 *
+	 * @return Number of instrument, pan and volume macros.
+	 */
+	public long getMacroCount() {
+		return macroCount;
+	}
+
+	void setMacroCount(long macroCount) {
+		this.macroCount = macroCount;
+	}
+
+	/**
+	 * Get size of the final MML.
+	 *
+	 * @return Size in bytes. (MML is ASCII text)
+	 */
+	public long getOutputBytes() {
+		return outputBytes;
+	}
+
+	void setOutputBytes(long outputBytes) {
+		this.outputBytes = outputBytes;
+	}
+
+	/**
+	 * Get number of label loops written for phrases shared by tracks.
+	 *
+	 * @return Number of label loops, 0 if they are not used.
+	 */
+	public long getPhraseCount() {
+		return phraseCount;
+	}
+
+	void setPhraseCount(long phraseCount) {
+		this.phraseCount = phraseCount;
+	}
+
+	/**
+	 * Get compiled bytes saved by the label loops.
+	 *
+	 * @return Difference of the estimated compiled size in bytes.
+	 */
+	public long getPhraseSavedBytes() {
+		return phraseSavedBytes;
+	}
+
+	void setPhraseSavedBytes(long phraseSavedBytes) {
+		this.phraseSavedBytes = phraseSavedBytes;
+	}
+
+	/**
+	 * Get estimated size of the N-SPC data compiled from the MML by AddmusicK.
+	 * It includes the instrument table and the song header, but not the samples.
+	 *
+	 * @return Estimated size in bytes.
+	 */
+	public long getEstimatedSize() {
+		return estimatedSize;
+	}
+
+	void setEstimatedSize(long estimatedSize) {
+		this.estimatedSize = estimatedSize;
+	}
+
+	/**
+	 * Get estimated size of each track of the compiled MML.
+	 *
+	 * @return Map of the track number to the estimated size in bytes, in order of MML.
+	 */
+	public Map<Integer, Long> getEstimatedTrackSizes() {
+		return estimatedTrackSizes;
+	}
+
+	void setEstimatedTrackSizes(Map<Integer, Long> estimatedTrackSizes) {
+		this.estimatedTrackSizes = Collections.unmodifiableMap(estimatedTrackSizes);
+	}
+
+	/**
+	 * Format the statistics as human readable text, one item per line.
+	 *
+	 * @return Text of the statistics.
+	 */
+	public String toText() {
+		String lineSeparator = Midi2MML.LINE_SEPARATOR;
+		StringBuilder sb = new StringBuilder();
+		for (int phase = 0; phase < PHASE_COUNT; phase++) {
+			sb.append(String.format("%-24s%12.3f ms%s", PHASE_NAMES[phase], phaseTimes[phase] / 1000000.0,
+					lineSeparator));
+		}
+		sb.append(String.format("%-24s%12.3f ms%s", "total", getTotalTime() / 1000000.0, lineSeparator));
+		sb.append(String.format("%-24s%12d%s", "midiEvents", midiEventCount, lineSeparator));
+		sb.append(String.format("%-24s%12d%s", "droppedControlChanges", droppedControlChangeCount, lineSeparator));
+		sb.append(String.format("%-24s%12d%s", "droppedTempoChanges", droppedTempoChangeCount, lineSeparator));
+		sb.append(String.format("%-24s%12d%s", "notes", noteCount, lineSeparator));
+		sb.append(String.format("%-24s%12d%s", "mmlEvents", mmlEventCount, lineSeparator));
+		sb.append(String.format("%-24s%12d%s", "macros", macroCount, lineSeparator));
+		sb.append(String.format("%-24s%12d%s", "outputBytes", outputBytes, lineSeparator));
+		sb.append(String.format("%-24s%12d%s", "phrases", phraseCount, lineSeparator));
+		sb.append(String.format("%-24s%12d%s", "phraseSavedBytes", phraseSavedBytes, lineSeparator));
+		sb.append(String.format("%-24s%12d%s", "estimatedSize", estimatedSize, lineSeparator));
+		for (Map.Entry<Integer, Long> trackSize : estimatedTrackSizes.entrySet()) {
+			sb.append(String.format("%-24s%12d%s", "estimatedSize #" + trackSize.getKey(), trackSize.getValue(),
+					lineSeparator));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Format the statistics as a JSON object. Times are in nanoseconds.
+	 *
+	 * @return JSON text of the statistics, in a single line.
+	 */
+	public String toJSON() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"phases\":{");
+		for (int phase = 0; phase < PHASE_COUNT; phase++) {
+			if (phase != 0) {
+				sb.append(',');
+			}
+			sb.append('"').append(PHASE_NAMES[phase]).append("\":").append(phaseTimes[phase]);
+		}
+		sb.append("},\"totalTime\":").append(getTotalTime());
+		sb.append(",\"midiEvents\":").append(midiEventCount);
+		sb.append(",\"droppedControlChanges\":").append(droppedControlChangeCount);
+		sb.append(",\"droppedTempoChanges\":").append(droppedTempoChangeCount);
+		sb.append(",\"notes\":").append(noteCount);
+		sb.append(",\"mmlEvents\":").append(mmlEventCount);
+		sb.append(",\"macros\":").append(macroCount);
+		sb.append(",\"outputBytes\":").append(outputBytes);
+		sb.append(",\"phrases\":").append(phraseCount);
+		sb.append(",\"phraseSavedBytes\":").append(phraseSavedBytes);
+		sb.append(",\"estimatedSize\":").append(estimatedSize);
+		sb.append(",\"estimatedTrackSizes\":{");
+		boolean firstTrack = true;
+		for (Map.Entry<Integer, Long> trackSize : estimatedTrackSizes.entrySet()) {
+			if (!firstTrack) {
+				sb.append(',');
+			}
+			sb.append('"').append(trackSize.getKey()).append("\":").append(trackSize.getValue());
+			firstTrack = false;
+		}
+		sb.append('}');
+		sb.append('}');
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("ConversionStats [midiEvents=").append(midiEventCount);
+		sb.append(", droppedControlChanges=").append(droppedControlChangeCount);
+		sb.append(", droppedTempoChanges=").append(droppedTempoChangeCount);
+		sb.append(", notes=").append(noteCount);
+		sb.append(", mmlEvents=").append(mmlEventCount);
+		sb.append(", macros=").append(macroCount);
+		sb.append(", outputBytes=").append(outputBytes);
+		sb.append(", phrases=").append(phraseCount);
+		sb.append(", phraseSavedBytes=").append(phraseSavedBytes);
+		sb.append(", estimatedSize=").append(estimatedSize);
+		for (int phase = 0; phase < PHASE_COUNT; phase++) {
+			sb.append(", ").append(PHASE_NAMES[phase]).append("=");
+			sb.append(String.format("%.3fms", phaseTimes[phase] / 1000000.0));
+		}
+		sb.append("]");
+		return sb.toString();
+	}
+}
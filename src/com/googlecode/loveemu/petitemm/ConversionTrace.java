@@ -0,0 +1,239 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.List;
+
+/**
+ * Bounded trace of the decisions made by a conversion, for diagnosing bad output.
+ * Records are stored as primitive values in a preallocated ring buffer,
+ * so recording never allocates, and they are decoded into text only by dump().
+ * When the buffer is full, the oldest records are overwritten.
+ */
+public class ConversionTrace {
+
+	/**
+	 * Record type for a dispatched MIDI event.
+	 * Fields: tick, status/data1/data2 packed, message length.
+	 */
+	static final int TYPE_MIDI_EVENT = 1;
+
+	/**
+	 * Record type for a note off which determines the note length.
+	 * Fields: tick, last MML tick, min length, max length, quantized length, next note tick (-1 if none).
+	 */
+	static final int TYPE_NOTE_OFF = 2;
+
+	/**
+	 * Record type for a quantization decision, without whole notes.
+	 * Fields: min length, max length, length, nearest 2^n length (0 if cached), nearest rate (double bits).
+	 */
+	static final int TYPE_QUANTIZE = 3;
+
+	/**
+	 * Record type for a timing change of an MML track.
+	 * Fields: last MML tick, new MML tick, note number.
+	 */
+	static final int TYPE_TIMING = 4;
+
+	/**
+	 * Number of long values in a record: type, track index and up to 6 fields.
+	 */
+	private static final int RECORD_SIZE = 8;
+
+	/**
+	 * Ring buffer of records.
+	 */
+	private final long[] records;
+
+	/**
+	 * Maximum number of records kept in the buffer.
+	 */
+	private final int capacity;
+
+	/**
+	 * Total number of records added, including overwritten ones.
+	 */
+	private long recordCount;
+
+	/**
+	 * Time signatures used for decoding ticks, null if not known yet.
+	 */
+	private List<MidiTimeSignature> timeSignatures;
+
+	/**
+	 * Resolution of the sequence, used for decoding ticks.
+	 */
+	private int resolution;
+
+	/**
+	 * Construct a new trace buffer.
+	 *
+	 * @param capacity Maximum number of records kept in the buffer.
+	 */
+	ConversionTrace(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Trace capacity must be greater than 0.");
+		}
+		this.capacity = capacity;
+		this.records = new long[capacity * RECORD_SIZE];
+	}
+
+	/**
+	 * Set the timing information used for decoding ticks to measures.
+	 *
+	 * @param timeSignatures Time signatures of the sequence.
+	 * @param resolution Resolution of the sequence.
+	 */
+	void setTimeBase(List<MidiTimeSignature> timeSignatures, int resolution) {
+		this.timeSignatures = timeSignatures;
+		this.resolution = resolution;
+	}
+
+	/**
+	 * Add a record, overwriting the oldest one if the buffer is full.
+	 *
+	 * @param type Record type.
+	 * @param track Track index, -1 if unknown.
+	 * @param field0 First field, see the record type for the meaning of the fields.
+	 * @param field1 Second field.
+	 * @param field2 Third field.
+	 * @param field3 Fourth field.
+	 * @param field4 Fifth field.
+	 * @param field5 Sixth field.
+	 */
+	void add(int type, int track, long field0, long field1, long field2, long field3, long field4, long field5) {
+		int offset = (int) (recordCount % capacity) * RECORD_SIZE;
+		records[offset] = type;
+		records[offset + 1] = track;
+		records[offset + 2] = field0;
+		records[offset + 3] = field1;
+		records[offset + 4] = field2;
+		records[offset + 5] = field3;
+		records[offset + 6] = field4;
+		records[offset + 7] = field5;
+		recordCount++;
+	}
+
+	/**
+	 * Get the maximum number of records kept in the buffer.
+	 *
+	 * @return Capacity of the buffer.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the total number of records added, including overwritten ones.
+	 *
+	 * @return Number of records.
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Decode the records in the buffer into text, from the oldest one.
+	 *
+	 * @param writer Destination to write the text.
+	 */
+	public void dump(StringBuilder writer) {
+		String lineSeparator = Midi2MML.LINE_SEPARATOR;
+		long firstRecord = Math.max(0, recordCount - capacity);
+		writer.append(String.format("Trace: %d records, showing the last %d%s", recordCount,
+				recordCount - firstRecord, lineSeparator));
+		if (timeSignatures != null) {
+			for (MidiTimeSignature timeSignature : timeSignatures) {
+				writer.append(timeSignature).append(lineSeparator);
+			}
+		}
+
+		for (long index = firstRecord; index < recordCount; index++) {
+			int offset = (int) (index % capacity) * RECORD_SIZE;
+			int track = (int) records[offset + 1];
+			long field0 = records[offset + 2];
+			long field1 = records[offset + 3];
+			long field2 = records[offset + 4];
+			long field3 = records[offset + 5];
+			long field4 = records[offset + 6];
+			long field5 = records[offset + 7];
+
+			switch ((int) records[offset]) {
+			case TYPE_MIDI_EVENT:
+				writer.append(String.format("MidiEvent: track=%d,tick=%d<%s>,message=%s", track, field0,
+						tickToString(field0), messageToString((int) field1, (int) field2)));
+				break;
+			case TYPE_NOTE_OFF:
+				writer.append(String.format("Note Off: track=%d,tick=%d<%s>,mmlLastTick=%d<%s>", track, field0,
+						tickToString(field0), field1, tickToString(field1)));
+				writer.append(String.format(",minLength=%d,maxLength=%d,length=%d", field2, field3, field4));
+				writer.append(field5 != -1 ? String.format(",next=%d<%s>", field5, tickToString(field5)) : ",next=null");
+				break;
+			case TYPE_QUANTIZE:
+				writer.append(String.format("Quantize: minLength=%d,maxLength=%d,length=%d", field0, field1, field2));
+				if (field3 == 0) {
+					writer.append(",cached");
+				} else {
+					writer.append(String.format(",nearPow2=%d,rateNearest=%.2f", field3,
+							Double.longBitsToDouble(field4)));
+				}
+				break;
+			case TYPE_TIMING:
+				writer.append(String.format("Timing: track=%d,%d<%s> -> %d<%s>,note=%d", track, field0,
+						tickToString(field0), field1, tickToString(field1), field2));
+				break;
+			default:
+				writer.append("Unknown record type " + records[offset]);
+				break;
+			}
+			writer.append(lineSeparator);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		dump(sb);
+		return sb.toString();
+	}
+
+	private String tickToString(long tick) {
+		if (timeSignatures == null || timeSignatures.isEmpty() || tick < 0) {
+			return "?";
+		}
+		try {
+			return MidiTimeSignature.getMeasureTickString(tick, timeSignatures, resolution);
+		} catch (IllegalArgumentException e) {
+			return "?";
+		}
+	}
+
+	/**
+	 * Pack the first bytes of a MIDI message into a record field.
+	 *
+	 * @param status Status byte.
+	 * @param data1 First data byte, or meta event type.
+	 * @param data2 Second data byte.
+	 * @return Packed value.
+	 */
+	static long packMessage(int status, int data1, int data2) {
+		return ((status & 0xff) << 16) | ((data1 & 0xff) << 8) | (data2 & 0xff);
+	}
+
+	private static String messageToString(int packedMessage, int length) {
+		int status = (packedMessage >> 16) & 0xff;
+		if (status == 0xff) {
+			return String.format("FF %02X (%d bytes)", (packedMessage >> 8) & 0xff, length);
+		} else if (length > 3) {
+			return String.format("%02X (%d bytes)", status, length);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			if (i != 0) {
+				sb.append(" ");
+			}
+			sb.append(String.format("%02X", (packedMessage >> (16 - i * 8)) & 0xff));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,31 @@
+package com.googlecode.loveemu.petitemm;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for converting a MIDI file to an MML file.
+ */
+@Name("petitemm.FileConversion")
+@Label("File Conversion")
+@Category("PetiteMM")
+@Description("Conversion of a MIDI file to an MML file, from reading the input to writing the output")
+public class FileConversionEvent extends jdk.jfr.Event {
+
+	@Label("File Name")
+	public String fileName;
+
+	@Label("Input Size")
+	@DataAmount
+	public long inputBytes;
+
+	@Label("Output Size")
+	@DataAmount
+	public long outputBytes;
+
+	@Label("Success")
+	public boolean success;
+}
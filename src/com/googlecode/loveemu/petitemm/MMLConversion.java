@@ -0,0 +1,559 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Result and state of a single MIDI to MML conversion.
+ * A new instance is created for each call of Midi2MML.convert(),
+ * so that one converter can be shared by many conversions.
+ */
+public class MMLConversion {
+
+	private static final String LINE_SEPARATOR = Midi2MML.LINE_SEPARATOR;
+
+	/**
+	 * Minimum interval of tick progress reports in nanoseconds.
+	 */
+	private static final long PROGRESS_INTERVAL = 100000000L;
+
+	/**
+	 * Options used for the conversion.
+	 */
+	private final Midi2MML options;
+
+	/**
+	 * Converted MML text of the tracks.
+	 */
+	private final StringBuilder mml = new StringBuilder();
+
+	/**
+	 * Instruments used in the sequence, in order of appearance.
+	 */
+	private final List<Integer> instruments = new ArrayList<>();
+
+	/**
+	 * Volumes used in the sequence, in order of appearance.
+	 */
+	private final List<MidiVolume> volumes = new ArrayList<>();
+
+	/**
+	 * Pannings used in the sequence, in order of appearance.
+	 */
+	private final List<Integer> pannings = new ArrayList<>();
+
+	/**
+	 * Track numbers written to the MML, in order of appearance.
+	 */
+	private final List<Integer> trackNumbers = new ArrayList<>();
+
+	/**
+	 * Counters and elapsed times of the conversion.
+	 */
+	private final ConversionStats stats = new ConversionStats();
+
+	/**
+	 * Trace of the conversion, null if disabled.
+	 */
+	private final ConversionTrace trace;
+
+	/**
+	 * Token to stop the conversion, null if the conversion cannot be cancelled.
+	 */
+	private final CancellationToken token;
+
+	/**
+	 * Listener of the conversion progress, null if not used.
+	 */
+	private final ConversionProgressListener progressListener;
+
+	/**
+	 * Value of System.nanoTime() at the last tick progress report.
+	 */
+	private long lastProgressTime;
+
+	/**
+	 * Final MML text, null if not post-processed yet.
+	 */
+	private String text;
+
+	/**
+	 * Header and macro section of the final MML.
+	 */
+	private String header;
+
+	/**
+	 * Final MML text of each track, keyed by track number.
+	 */
+	private Map<Integer, String> tracks;
+
+	/**
+	 * Global tempo map of the converted sequence.
+	 */
+	private MidiTempoMap tempoMap;
+
+	/**
+	 * Construct a new conversion state.
+	 *
+	 * @param options
+	 *            Options used for the conversion.
+	 * @param token
+	 *            Token to stop the conversion, null if the conversion cannot be cancelled.
+	 */
+	MMLConversion(Midi2MML options, CancellationToken token) {
+		this.options = options;
+		this.token = token;
+		this.progressListener = options.getProgressListener();
+		this.lastProgressTime = System.nanoTime();
+		this.trace = (options.getTraceCapacity() > 0) ? new ConversionTrace(options.getTraceCapacity()) : null;
+	}
+
+	/**
+	 * Get the options used for the conversion.
+	 *
+	 * @return Converter which holds the options.
+	 */
+	public Midi2MML getOptions() {
+		return options;
+	}
+
+	/**
+	 * Get the converted MML text of the tracks, without macros.
+	 *
+	 * @return MML text.
+	 */
+	public StringBuilder getMML() {
+		return mml;
+	}
+
+	/**
+	 * Get counters and elapsed times of the conversion.
+	 *
+	 * @return Conversion statistics.
+	 */
+	public ConversionStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Get the trace of the conversion.
+	 *
+	 * @return Conversion trace, null if the trace is disabled by Midi2MML.setTraceCapacity().
+	 */
+	public ConversionTrace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Get the final MML text, which consists of the header, macros and tracks.
+	 * Unused macros are removed from the text.
+	 *
+	 * @return Final MML text.
+	 */
+	public String getText() {
+		postProcess();
+		return text;
+	}
+
+	/**
+	 * Get the header and macro section of the final MML text.
+	 *
+	 * @return Header and macro definitions.
+	 */
+	public String getHeader() {
+		postProcess();
+		return header;
+	}
+
+	/**
+	 * Get the final MML text of each track.
+	 *
+	 * @return Unmodifiable map from track number to MML text, in order of track number.
+	 */
+	public Map<Integer, String> getTracks() {
+		postProcess();
+		return tracks;
+	}
+
+	/**
+	 * Get the token to stop the conversion.
+	 *
+	 * @return Cancellation token, null if the conversion cannot be cancelled.
+	 */
+	CancellationToken getToken() {
+		return token;
+	}
+
+	/**
+	 * Get the global tempo map of the converted sequence.
+	 *
+	 * @return Tempo map, null if the tick loop has not started.
+	 */
+	MidiTempoMap getTempoMap() {
+		return tempoMap;
+	}
+
+	void setTempoMap(MidiTempoMap tempoMap) {
+		this.tempoMap = tempoMap;
+	}
+
+	/**
+	 * Throw an exception with the statistics so far, if the conversion must stop.
+	 *
+	 * @throws ConversionCancelledException if the token is cancelled or the deadline has passed.
+	 */
+	void checkCancelled() {
+		if (token != null) {
+			token.check(stats);
+		}
+	}
+
+	/**
+	 * Finish a phase and start the next one, and report it to the progress listener.
+	 *
+	 * @param phase Phase number to be finished.
+	 * @param startTime Value of ConversionStats.startPhase() or endPhase() when the phase has started.
+	 * @return Value of System.nanoTime() at the end of the phase.
+	 */
+	long endPhase(int phase, long startTime) {
+		long endTime = stats.endPhase(phase, startTime);
+		if (progressListener != null) {
+			progressListener.phaseFinished(phase, endTime - startTime);
+		}
+		return endTime;
+	}
+
+	/**
+	 * Report the current tick to the progress listener, unless it has been reported recently.
+	 *
+	 * @param tick Current tick.
+	 * @param totalTicks Tick of the last event of the sequence.
+	 */
+	void reportTick(long tick, long totalTicks) {
+		if (progressListener == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (tick >= totalTicks || now - lastProgressTime >= PROGRESS_INTERVAL) {
+			lastProgressTime = now;
+			progressListener.tickProgress(Math.min(tick, totalTicks), totalTicks);
+		}
+	}
+
+	/**
+	 * Report a finished track to the progress listener.
+	 *
+	 * @param trackIndex Track number.
+	 * @param trackCount Number of tracks.
+	 */
+	void reportTrackFinished(int trackIndex, int trackCount) {
+		if (progressListener != null) {
+			progressListener.trackFinished(trackIndex, trackCount);
+		}
+	}
+
+	/**
+	 * Register a track written to the MML.
+	 *
+	 * @param trackNumber
+	 *            Track number.
+	 */
+	void addTrack(int trackNumber) {
+		trackNumbers.add(trackNumber);
+	}
+
+	/**
+	 * Register an instrument used in the sequence.
+	 *
+	 * @param instrument
+	 *            MIDI program number.
+	 */
+	void addInstrument(int instrument) {
+		if (!instruments.contains(instrument)) {
+			instruments.add(instrument);
+		}
+	}
+
+	/**
+	 * Register a volume used in the sequence.
+	 *
+	 * @param volume
+	 *            Volume parameters.
+	 */
+	void addVolume(MidiVolume volume) {
+		if (!volumes.contains(volume)) {
+			volumes.add(volume);
+		}
+	}
+
+	/**
+	 * Register a panning used in the sequence.
+	 *
+	 * @param pan
+	 *            MIDI pan value.
+	 */
+	void addPanning(int pan) {
+		if (!pannings.contains(pan)) {
+			pannings.add(pan);
+		}
+	}
+
+	/**
+	 * Write the header and the macro definitions used by the converted MML.
+	 *
+	 * @return Header and macro definitions.
+	 */
+	public StringBuilder writeMacros() {
+		MMLSymbol mmlSymbol = options.getMmlSymbol();
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("#amk 2" + LINE_SEPARATOR);
+		if(options.getNoControlChanges()) {
+			return sb;
+		}
+
+
+		int i = 30;
+		sb.append(LINE_SEPARATOR + "#instruments {" + LINE_SEPARATOR);
+		for (int instr : instruments) {
+			sb.append("@0 $FF $E0 $00 $06 $00" + LINE_SEPARATOR);
+		}
+		sb.append("}" + LINE_SEPARATOR);
+		sb.append(LINE_SEPARATOR + "; Instrument macros" + LINE_SEPARATOR);
+		for (int instr : instruments) {
+			String macro = String.format("\"I%02X = %s%d\"%s", instr, mmlSymbol.getInstrument(), i++, LINE_SEPARATOR);
+			sb.append(macro);
+		}
+
+		sb.append(LINE_SEPARATOR + "; Pan macros" + LINE_SEPARATOR);
+		for (int pan : pannings) {
+			int y = findPanIndex(pan);
+			String macro = String.format("\"Y%02X = %s%d\"%s", pan, mmlSymbol.getPan(), y, LINE_SEPARATOR);
+			sb.append(macro);
+		}
+
+		sb.append(LINE_SEPARATOR + "; Volume macros" + LINE_SEPARATOR);
+		for (MidiVolume volume : volumes) {
+			int vol = volume.volume;
+			int qnt = volume.quantization;
+			int exp = volume.expression;
+			int pan = volume.pan;
+
+			// Find which SMW panning better approximates the real panning
+			int index = findPanIndex(pan);
+
+			// Compute the volume factor
+			double volFactor = ((double) vol / 127.0) * ((double) qnt / 127.0) * ((double) exp / 127.0);
+
+			// If we have to correct the volume based on the panning,
+			// reduce it depending on how louder the panning is compared to the center.
+			if(!options.getNoPanCorrection() && index != 10) {
+				int rightIndex = index > 10 ? index : 20 - index;
+				double correction = (double) SMWTables.PAN_VALUES[10] / (double) SMWTables.PAN_VALUES[rightIndex];
+				volFactor *= Math.sqrt(correction);
+			}
+
+			// Now find the final volume value to output, also taking into
+			// account the multiplying factor.
+			int v = (int) Math.round(255.0 * volFactor * Math.sqrt(options.getMultiplyVolumes()));
+
+			// If the value is too high, throw an exception.
+			if(v > 255) {
+				throw new IllegalArgumentException(
+						String.format("Multiply factor %f is too high!", options.getMultiplyVolumes()));
+			}
+
+			// Now generate the macro.
+			String panS = options.getNoPanCorrection() ? "" : String.format("P%02X", pan);
+			String macro = String.format("\"V%02XQ%02XE%02X%s = %s%d\"%s", vol, qnt, exp, panS,
+					mmlSymbol.getVolume(), v, LINE_SEPARATOR);
+			sb.append(macro);
+		}
+		sb.append(LINE_SEPARATOR);
+		return sb;
+	}
+
+	/**
+	 * Build the final MML text from the macros and the tracks, if not built yet.
+	 */
+	void postProcess() {
+		if (text != null) {
+			return;
+		}
+
+		long startTime = stats.startPhase();
+		StringBuilder output = writeMacros();
+		output.append(mml);
+		if (!options.getNoControlChanges()) {
+			stats.setMacroCount(instruments.size() + pannings.size() + volumes.size());
+		}
+		startTime = endPhase(ConversionStats.PHASE_WRITE_MACROS, startTime);
+
+		text = postProcess(output.toString());
+
+		// split the final text into the header and the tracks
+		Map<Integer, String> trackMap = new LinkedHashMap<>();
+		int trackStart = -1;
+		int prevTrackNumber = -1;
+		int searchIndex = 0;
+		for (int trackNumber : trackNumbers) {
+			int markerIndex = text.indexOf(LINE_SEPARATOR + "#" + trackNumber + LINE_SEPARATOR, searchIndex);
+			if (trackStart == -1) {
+				header = text.substring(0, markerIndex);
+			} else {
+				trackMap.put(prevTrackNumber, text.substring(trackStart, markerIndex));
+			}
+			trackStart = markerIndex + LINE_SEPARATOR.length() * 2 + 1 + Integer.toString(trackNumber).length();
+			prevTrackNumber = trackNumber;
+			searchIndex = trackStart;
+		}
+		if (trackStart == -1) {
+			header = text;
+		} else {
+			trackMap.put(prevTrackNumber, text.substring(trackStart));
+		}
+		tracks = Collections.unmodifiableMap(trackMap);
+
+		estimateSize();
+
+		stats.setOutputBytes(text.length());
+		endPhase(ConversionStats.PHASE_POST_PROCESS, startTime);
+	}
+
+	/**
+	 * Estimate the compiled size of the final MML, and write it as a comment if requested.
+	 */
+	private void estimateSize() {
+		MMLSizeEstimator sizeEstimator = new MMLSizeEstimator(options.getMmlSymbol(), header);
+		Map<Integer, Long> trackSizes = new LinkedHashMap<>();
+		long estimatedSize = sizeEstimator.getHeaderSize();
+		for (Map.Entry<Integer, String> track : tracks.entrySet()) {
+			long trackSize = sizeEstimator.estimateTrack(track.getValue());
+			trackSizes.put(track.getKey(), trackSize);
+			estimatedSize += trackSize;
+		}
+		stats.setEstimatedSize(estimatedSize);
+		stats.setEstimatedTrackSizes(trackSizes);
+
+		if (options.getSizeComment()) {
+			StringBuilder comment = new StringBuilder();
+			comment.append(LINE_SEPARATOR).append("; Estimated size: ").append(estimatedSize).append(" bytes");
+			String separator = " (";
+			for (Map.Entry<Integer, Long> trackSize : trackSizes.entrySet()) {
+				comment.append(separator).append("#").append(trackSize.getKey()).append(": ").append(trackSize.getValue());
+				separator = ", ";
+			}
+			if (!trackSizes.isEmpty()) {
+				comment.append(")");
+			}
+			comment.append(LINE_SEPARATOR);
+
+			String oldHeader = header;
+			header = oldHeader + comment;
+			text = header + text.substring(oldHeader.length());
+		}
+	}
+
+	String postProcess(String output) {
+		if(options.getNoControlChanges()) {
+			return output;
+		}
+
+		// If there's some unused macro left, remove it
+		List<String> matches = new ArrayList<>();
+		Matcher matcher = Pattern.compile("\".*=").matcher(output);
+		while (matcher.find()) {
+			checkCancelled();
+			String match = matcher.group().replaceAll("\\s+", "");
+			match = match.substring(1, match.length() - 1);
+			int count = output.split(match, -1).length - 1;
+			if (count <= 1 && !matches.contains(match)) {
+				matches.add(match);
+			}
+		}
+		for (String match : matches) {
+			output = output.replaceAll("\"" + match + ".*=.*\"\\n", "");
+		}
+
+		// If all pan values are the same, just remove them from macro names
+		matches.clear();
+		matcher = Pattern.compile("V..Q..E..P..").matcher(output);
+		while (matcher.find()) {
+			String match = matcher.group().substring(9);
+			if (!matches.contains(match)) {
+				matches.add(match);
+			}
+		}
+		if (matches.size() == 1) {
+			output = output.replaceAll("(V..Q..E..)(P..)", "$1");
+		}
+
+		// If all expression values are the same, just remove them from macro names
+		matches.clear();
+		matcher = Pattern.compile("V..Q..E..").matcher(output);
+		while (matcher.find()) {
+			String match = matcher.group().substring(6);
+			if (!matches.contains(match)) {
+				matches.add(match);
+			}
+		}
+		if (matches.size() == 1) {
+			output = output.replaceAll("(V..Q..)(E..)", "$1");
+		}
+
+		// If all velocity values are the same, just remove them from macro names
+		matches.clear();
+		matcher = Pattern.compile("V..Q..").matcher(output);
+		while (matcher.find()) {
+			String match = matcher.group().substring(3);
+			if (!matches.contains(match)) {
+				matches.add(match);
+			}
+		}
+		if (matches.size() == 1) {
+			output = output.replaceAll("(V..)(Q..)", "$1");
+		}
+
+		return output;
+	}
+
+	private static int findPanIndex(int pan) {
+		switch(pan) {
+		case 0:
+			return 20;
+		case 64:
+			return 10;
+		case 127:
+			return 0;
+		default:
+			break;
+		}
+
+		double panFactor = (double) pan / (double) (128-pan);
+
+		double previous = Double.POSITIVE_INFINITY;
+		double current;
+
+		for(int index = 0; index <= 20; index++) {
+			if(SMWTables.PAN_VALUES[index] == 0) {
+				current = Double.POSITIVE_INFINITY;
+			} else {
+				current = (double) SMWTables.PAN_VALUES[20-index] / (double) SMWTables.PAN_VALUES[index];
+			}
+
+			double diff = current - panFactor;
+			if(index != 0 && diff * previous <= 0) {
+				return Math.abs(diff) <= Math.abs(previous) ? index : index - 1;
+			}
+
+			previous = diff;
+		}
+
+		return 0;
+	}
+}
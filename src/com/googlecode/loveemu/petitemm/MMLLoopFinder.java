@@ -0,0 +1,201 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds consecutive repeats of MML commands in a track and writes them with the loop syntax. ([...]n)
+ * Spans are compared by rolling hashes, and only a bounded number of candidate lengths
+ * is tried at each position, so a track is processed in almost linear time.
+ * Loops are never nested, so label loops written by MMLPhraseDictionary are never put in a loop.
+ */
+class MMLLoopFinder {
+
+	/**
+	 * Maximum number of commands in a loop.
+	 */
+	private static final int MAX_LOOP_LENGTH = 1024;
+
+	/**
+	 * Maximum number of candidate loop lengths tried at each position.
+	 */
+	private static final int MAX_CANDIDATES = 32;
+
+	/**
+	 * Maximum repeat count of a loop.
+	 */
+	private static final int MAX_LOOP_COUNT = 255;
+
+	/**
+	 * Multiplier of the rolling hash.
+	 */
+	private static final long HASH_BASE = 0x100000001b3L;
+
+	/**
+	 * MML symbol set.
+	 */
+	private final MMLSymbol mmlSymbol;
+
+	/**
+	 * Construct a new loop finder.
+	 *
+	 * @param mmlSymbol MML symbol set.
+	 */
+	MMLLoopFinder(MMLSymbol mmlSymbol) {
+		this.mmlSymbol = mmlSymbol;
+	}
+
+	/**
+	 * Write MML commands, replacing consecutive repeats with loops.
+	 * A span is looped only if it does not change the octave in total and has no absolute octave command,
+	 * so that every repeat starts from the same octave, and if neither it nor the following command starts with a tie.
+	 * Commands which start with a label loop are kept outside of loops.
+	 *
+	 * @param commands MML commands to be written, in order.
+	 * @param writer Destination to write MML text.
+	 */
+	void write(List<String> commands, StringBuilder writer) {
+		final int count = commands.size();
+
+		// give the same number to the same command
+		int[] ids = new int[count];
+		Map<String, Integer> idMap = new HashMap<>();
+		for (int i = 0; i < count; i++) {
+			String command = commands.get(i);
+			Integer id = idMap.get(command);
+			if (id == null) {
+				id = idMap.size();
+				idMap.put(command, id);
+			}
+			ids[i] = id;
+		}
+
+		// prefix sums of hash, text length, octave changes, absolute octaves, label loops and notes
+		long[] hashes = new long[count + 1];
+		long[] powers = new long[count + 1];
+		int[] textLengths = new int[count + 1];
+		int[] octaves = new int[count + 1];
+		int[] absoluteOctaves = new int[count + 1];
+		int[] labels = new int[count + 1];
+		int[] notes = new int[count + 1];
+		boolean[] ties = new boolean[count];
+		boolean[] blanks = new boolean[count];
+		powers[0] = 1;
+		for (int i = 0; i < count; i++) {
+			String command = commands.get(i);
+			hashes[i + 1] = hashes[i] * HASH_BASE + ids[i] + 1;
+			powers[i + 1] = powers[i] * HASH_BASE;
+			textLengths[i + 1] = textLengths[i] + command.length();
+			octaves[i + 1] = octaves[i];
+			absoluteOctaves[i + 1] = absoluteOctaves[i];
+			labels[i + 1] = labels[i];
+			notes[i + 1] = notes[i];
+			ties[i] = mmlSymbol.isTie(command);
+			blanks[i] = command.trim().isEmpty();
+			if (command.startsWith(mmlSymbol.getLoopLabelStart())) {
+				labels[i + 1]++;
+			} else if (mmlSymbol.isOctaveChange(command)) {
+				if (command.startsWith(mmlSymbol.getOctave())) {
+					absoluteOctaves[i + 1]++;
+				} else if (command.startsWith(mmlSymbol.getOctaveUp())) {
+					octaves[i + 1] += command.length();
+				} else {
+					octaves[i + 1] -= command.length();
+				}
+			} else if (mmlSymbol.isNoteOrTie(command) || mmlSymbol.isRest(command)) {
+				notes[i + 1]++;
+			}
+		}
+
+		// link each command to the next same command
+		int[] nextIndices = new int[count];
+		int[] lastIndices = new int[idMap.size()];
+		Arrays.fill(lastIndices, count);
+		for (int i = count - 1; i >= 0; i--) {
+			nextIndices[i] = lastIndices[ids[i]];
+			lastIndices[ids[i]] = i;
+		}
+
+		int loopSymbolLength = mmlSymbol.getLoopStart().length() + mmlSymbol.getLoopEnd().length();
+		int index = 0;
+		while (index < count) {
+			int bestLength = 0;
+			int bestCount = 0;
+			int bestSaving = 0;
+
+			// a loop starts with a command, not with a space nor a tie
+			if (!ties[index] && !blanks[index]) {
+				int candidates = 0;
+				for (int next = nextIndices[index]; next < count && candidates < MAX_CANDIDATES; next = nextIndices[next]) {
+					int length = next - index;
+					if (length > MAX_LOOP_LENGTH) {
+						break;
+					}
+					candidates++;
+
+					if (octaves[next] != octaves[index] || absoluteOctaves[next] != absoluteOctaves[index]
+							|| labels[next] != labels[index] || notes[next] == notes[index]) {
+						continue;
+					}
+
+					long hash = spanHash(hashes, powers, index, length);
+					int repeats = 1;
+					while (repeats < MAX_LOOP_COUNT && index + length * (repeats + 1) <= count
+							&& spanHash(hashes, powers, index + length * repeats, length) == hash) {
+						repeats++;
+					}
+					// do not cut a tied note at the end of the loop
+					while (repeats > 1 && index + length * repeats < count && ties[index + length * repeats]) {
+						repeats--;
+					}
+					if (repeats < 2) {
+						continue;
+					}
+
+					int textLength = textLengths[next] - textLengths[index];
+					int saving = textLength * (repeats - 1) - loopSymbolLength - Integer.toString(repeats).length();
+					if (saving > bestSaving) {
+						bestLength = length;
+						bestCount = repeats;
+						bestSaving = saving;
+					}
+				}
+			}
+
+			// compare the chosen loop command by command, in case of a hash collision
+			for (int repeat = 1; repeat < bestCount; repeat++) {
+				if (!sameSpan(ids, index, index + bestLength * repeat, bestLength)) {
+					bestCount = 0;
+					break;
+				}
+			}
+
+			if (bestCount != 0) {
+				writer.append(mmlSymbol.getLoopStart());
+				for (int i = index; i < index + bestLength; i++) {
+					writer.append(commands.get(i));
+				}
+				writer.append(mmlSymbol.getLoopEnd()).append(bestCount);
+				index += bestLength * bestCount;
+			} else {
+				writer.append(commands.get(index));
+				index++;
+			}
+		}
+	}
+
+	private static long spanHash(long[] hashes, long[] powers, int start, int length) {
+		return hashes[start + length] - hashes[start] * powers[length];
+	}
+
+	private static boolean sameSpan(int[] ids, int start1, int start2, int length) {
+		for (int i = 0; i < length; i++) {
+			if (ids[start1 + i] != ids[start2 + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,91 @@
+package com.googlecode.loveemu.petitemm;
+
+/**
+ * Use of an instrument, a volume or a panning by a track.
+ * The macros are defined in the order of their first use in the whole sequence,
+ * so a track records its uses while it is converted, and they are registered to the conversion
+ * in the order of tick and track after all tracks are converted.
+ */
+class MMLMacroUse {
+
+	static final int TYPE_INSTRUMENT = 0;
+	static final int TYPE_VOLUME = 1;
+	static final int TYPE_PANNING = 2;
+
+	/**
+	 * Tick of the MIDI event which uses the macro.
+	 */
+	private final long tick;
+
+	/**
+	 * Type of the macro.
+	 */
+	private final int type;
+
+	/**
+	 * Instrument number or MIDI pan value.
+	 */
+	private final int value;
+
+	/**
+	 * Volume parameters, null if the type is not TYPE_VOLUME.
+	 */
+	private final MidiVolume volume;
+
+	/**
+	 * Construct a use of an instrument or a panning.
+	 *
+	 * @param tick Tick of the MIDI event.
+	 * @param type TYPE_INSTRUMENT or TYPE_PANNING.
+	 * @param value Instrument number or MIDI pan value.
+	 */
+	MMLMacroUse(long tick, int type, int value) {
+		this.tick = tick;
+		this.type = type;
+		this.value = value;
+		this.volume = null;
+	}
+
+	/**
+	 * Construct a use of a volume.
+	 *
+	 * @param tick Tick of the MIDI event.
+	 * @param volume Volume parameters.
+	 */
+	MMLMacroUse(long tick, MidiVolume volume) {
+		this.tick = tick;
+		this.type = TYPE_VOLUME;
+		this.value = 0;
+		this.volume = volume;
+	}
+
+	/**
+	 * Get the tick of the MIDI event which uses the macro.
+	 *
+	 * @return Tick.
+	 */
+	long getTick() {
+		return tick;
+	}
+
+	/**
+	 * Register the macro to a conversion.
+	 *
+	 * @param conversion Conversion which defines the macro.
+	 */
+	void register(MMLConversion conversion) {
+		switch (type) {
+			case TYPE_INSTRUMENT:
+				conversion.addInstrument(value);
+				break;
+			case TYPE_VOLUME:
+				conversion.addVolume(volume);
+				break;
+			case TYPE_PANNING:
+				conversion.addPanning(value);
+				break;
+			default:
+				break;
+		}
+	}
+}
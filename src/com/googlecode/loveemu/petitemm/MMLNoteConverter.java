@@ -23,14 +23,14 @@ public class MMLNoteConverter {
 	private MMLNoteInfo[] notes;
 	
 	/**
-	 * Tick to premitive note lengths table.
+	 * Tick to premitive note lengths table. (sorted in descending order)
 	 */
-	private List<List<Integer>> noteLengths;
+	private int[][] noteLengths;
 	
 	/**
-	 * Tick to premitive note lengths table. (dotted notes disassembled)
+	 * Tick to premitive note lengths table. (dotted notes disassembled, sorted in descending order)
 	 */
-	private List<List<Integer>> noteLengthsDotsDisassembled;
+	private int[][] noteLengthsDotsDisassembled;
 	
 	/**
 	 * Ticks per quarter note of MML.
@@ -68,10 +68,22 @@ public class MMLNoteConverter {
 	 * @param maxDotCount Maximum count of dots of dotted-note allowed.
 	 */
 	public MMLNoteConverter(MMLSymbol mmlSymbol, int tpqn, int maxDotCount, boolean useTicks) {
+		this(mmlSymbol, tpqn, maxDotCount, useTicks, null);
+	}
+	
+	/**
+	 * Construct new MML note converter, which can be stopped by a token.
+	 * Building the note table takes long time for a large TPQN.
+	 * 
+	 * @param tpqn        Tick per quarter note of MML.
+	 * @param maxDotCount Maximum count of dots of dotted-note allowed.
+	 * @param token       Token to stop the construction, null if it cannot be cancelled.
+	 */
+	MMLNoteConverter(MMLSymbol mmlSymbol, int tpqn, int maxDotCount, boolean useTicks, CancellationToken token) {
 		this.mmlSymbol = mmlSymbol;
 		this.useTicks = useTicks;
 		setTPQN(tpqn);
-		initNoteTable(tpqn, maxDotCount);
+		initNoteTable(tpqn, maxDotCount, token);
 	}
 	
 	/**
@@ -148,29 +160,59 @@ public class MMLNoteConverter {
 	 * @return List of note lengths.
 	 */
 	public List<Integer> getPrimitiveNoteLengths(int length, boolean dotsDisassembled) {
-		List<Integer> lengths = new ArrayList<>();
-		
+		int count = getPrimitiveNoteLengthCount(length, dotsDisassembled);
+		List<Integer> lengths = new ArrayList<>(count);
+		for(int index = 0; index < count; index++) {
+			lengths.add(getPrimitiveNoteLength(length, dotsDisassembled, index));
+		}
+		return lengths;
+	}
+	
+	/**
+	 * Get the number of notes which are necessary to express a certain length note.
+	 * 
+	 * @param length           Length of note to be expressed.
+	 * @param dotsDisassembled true if dotted note must be expressed by two or more
+	 *                         elements.
+	 * @return Number of note lengths, same as the size of getPrimitiveNoteLengths().
+	 */
+	public int getPrimitiveNoteLengthCount(int length, boolean dotsDisassembled) {
 		if(length < 0)
 			throw new IllegalArgumentException("Note length must be a positive number.");
 		else if(length == 0) {
-			return lengths; // blank list
+			return 0;
 		}
 		
-		int len = length;
-		
-		List<List<Integer>> targetNoteLengths;
-		if(dotsDisassembled)
-			targetNoteLengths = noteLengthsDotsDisassembled;
-		else
-			targetNoteLengths = noteLengths;
+		int[][] targetNoteLengths = dotsDisassembled ? noteLengthsDotsDisassembled : noteLengths;
+		int maxNoteLength = tpqn * 8;
+		int repeatCount = (length - 1) / maxNoteLength;
+		int lastLength = length - repeatCount * maxNoteLength;
+		return targetNoteLengths[maxNoteLength].length * repeatCount + targetNoteLengths[lastLength].length;
+	}
+	
+	/**
+	 * Get one of notes which are necessary to express a certain length note,
+	 * without allocating the whole list.
+	 * 
+	 * @param length           Length of note to be expressed.
+	 * @param dotsDisassembled true if dotted note must be expressed by two or more
+	 *                         elements.
+	 * @param index            Index of the element, same as the index of getPrimitiveNoteLengths().
+	 * @return Note length at the specified index.
+	 */
+	public int getPrimitiveNoteLength(int length, boolean dotsDisassembled, int index) {
+		if(length < 0)
+			throw new IllegalArgumentException("Note length must be a positive number.");
 		
-		// construct the final length list
-		while(len > (tpqn * 8)) {
-			lengths.addAll(targetNoteLengths.get(tpqn * 8));
-			len -= tpqn * 8;
+		int[][] targetNoteLengths = dotsDisassembled ? noteLengthsDotsDisassembled : noteLengths;
+		int maxNoteLength = tpqn * 8;
+		int repeatCount = (length - 1) / maxNoteLength;
+		int[] repeatedLengths = targetNoteLengths[maxNoteLength];
+		int repeatedCount = repeatedLengths.length * repeatCount;
+		if(index < repeatedCount) {
+			return repeatedLengths[index % repeatedLengths.length];
 		}
-		lengths.addAll(targetNoteLengths.get(len));
-		return lengths;
+		return targetNoteLengths[length - repeatCount * maxNoteLength][index - repeatedCount];
 	}
 	
 	/**
@@ -203,8 +245,7 @@ public class MMLNoteConverter {
 		else if(length == 0)
 			return true;
 		
-		List<Integer> lengths = noteLengths.get(length % (tpqn * 4));
-		return (lengths.size() <= 1);
+		return (noteLengths[length % (tpqn * 4)].length <= 1);
 	}
 	
 	/**
@@ -233,8 +274,9 @@ public class MMLNoteConverter {
 	 * 
 	 * @param tpqn        Tick per quarter note of MML.
 	 * @param maxDotCount Maximum count of dots of dotted-note allowed.
+	 * @param token       Token to stop the construction, null if it cannot be cancelled.
 	 */
-	private void initNoteTable(int tpqn, int maxDotCount) {
+	private void initNoteTable(int tpqn, int maxDotCount, CancellationToken token) {
 		int tick;
 		
 		if(tpqn < 0) {
@@ -247,8 +289,8 @@ public class MMLNoteConverter {
 		
 		// initialize length table
 		List<List<Integer>> singleNoteLengths = new ArrayList<>(tpqn * 8 + 1);
-		noteLengths = new ArrayList<>(tpqn * 8 + 1);
-		noteLengthsDotsDisassembled = new ArrayList<>(tpqn * 8 + 1);
+		List<List<Integer>> noteLengths = new ArrayList<>(tpqn * 8 + 1);
+		List<List<Integer>> noteLengthsDotsDisassembled = new ArrayList<>(tpqn * 8 + 1);
 		for(int mmlNoteLen = 0; mmlNoteLen <= (tpqn * 8); mmlNoteLen++) {
 			singleNoteLengths.add(null);
 			noteLengths.add(null);
@@ -330,6 +372,10 @@ public class MMLNoteConverter {
 			
 			// process for all items
 			for(tick = 1; tick < notes.length; tick++) {
+				if(token != null && (tick & Midi2MML.CANCELLATION_CHECK_MASK) == 0) {
+					token.check(null);
+				}
+				
 				// skip existing definitions
 				if(notes[tick] != null) {
 					continue;
@@ -382,5 +428,31 @@ public class MMLNoteConverter {
 			Collections.sort(lengths);
 			Collections.reverse(lengths);
 		}
+		
+		// flatten the tables into primitive arrays for allocation-free lookups
+		this.noteLengths = toLengthTable(noteLengths);
+		this.noteLengthsDotsDisassembled = toLengthTable(noteLengthsDotsDisassembled);
+	}
+	
+	/**
+	 * Convert a note length table into a primitive array.
+	 * 
+	 * @param lengthsTable Tick to note lengths table.
+	 * @return Tick to note lengths table, an empty array for unused items.
+	 */
+	private static int[][] toLengthTable(List<List<Integer>> lengthsTable) {
+		int[][] table = new int[lengthsTable.size()][];
+		for(int tick = 0; tick < table.length; tick++) {
+			List<Integer> lengths = lengthsTable.get(tick);
+			if(lengths == null) {
+				table[tick] = new int[0];
+				continue;
+			}
+			table[tick] = new int[lengths.size()];
+			for(int i = 0; i < table[tick].length; i++) {
+				table[tick][i] = lengths.get(i);
+			}
+		}
+		return table;
 	}
 }
@@ -0,0 +1,431 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Finds phrases repeated across all tracks and writes them once as label loops. ((n)[...])
+ * Phrases are spans of whole measures, hashed by their commands and the octave they start from.
+ * The phrases which save the most compiled bytes are chosen first, and the first occurrence in the MML
+ * defines the label loop, which is called by the label number at the other occurrences.
+ * The saving is estimated by the cost model of MMLSizeEstimator, not by the length of the MML text.
+ */
+class MMLPhraseDictionary {
+
+	/**
+	 * Maximum number of measures in a phrase.
+	 */
+	private static final int MAX_PHRASE_MEASURES = 4;
+
+	/**
+	 * Maximum number of label loops.
+	 */
+	private static final int MAX_PHRASE_COUNT = 255;
+
+	/**
+	 * Multiplier of the rolling hash.
+	 */
+	private static final long HASH_BASE = 0x100000001b3L;
+
+	/**
+	 * Octave before the first absolute octave command.
+	 */
+	private static final int UNKNOWN_OCTAVE = Integer.MIN_VALUE;
+
+	/**
+	 * Candidate phrase and its occurrences.
+	 */
+	private static class Phrase {
+		/** Number of measures. */
+		int measureCount;
+		/** Compiled size of the loop body in bytes, 0 if not estimated yet. */
+		int bodySize;
+		/** Track index and measure index of each occurrence, in order of MML. */
+		List<int[]> occurrences = new ArrayList<>();
+		/** Bytes saved by the phrase, when it was evaluated last. */
+		int saving;
+		/** Label number, 0 if not chosen. */
+		int label;
+		/** True if the label loop is already written. */
+		boolean defined;
+	}
+
+	/**
+	 * MML symbol set.
+	 */
+	private final MMLSymbol mmlSymbol;
+
+	/**
+	 * True if the octave symbols are swapped.
+	 */
+	private final boolean octaveReversed;
+
+	/**
+	 * Size estimator, which knows the macros used by the tracks.
+	 */
+	private final MMLSizeEstimator sizeEstimator;
+
+	/**
+	 * Number of label loops defined by apply().
+	 */
+	private int phraseCount;
+
+	/**
+	 * Compiled bytes saved by apply().
+	 */
+	private long savedBytes;
+
+	/**
+	 * Construct a new phrase dictionary.
+	 *
+	 * @param mmlSymbol MML symbol set.
+	 * @param octaveReversed true if the octave symbols are swapped.
+	 * @param sizeEstimator Size estimator, which knows the macros used by the tracks.
+	 */
+	MMLPhraseDictionary(MMLSymbol mmlSymbol, boolean octaveReversed, MMLSizeEstimator sizeEstimator) {
+		this.mmlSymbol = mmlSymbol;
+		this.octaveReversed = octaveReversed;
+		this.sizeEstimator = sizeEstimator;
+	}
+
+	/**
+	 * Get number of label loops defined by apply().
+	 *
+	 * @return Number of label loops.
+	 */
+	int getPhraseCount() {
+		return phraseCount;
+	}
+
+	/**
+	 * Get compiled bytes saved by apply().
+	 *
+	 * @return Difference of the estimated compiled size in bytes.
+	 */
+	long getSavedBytes() {
+		return savedBytes;
+	}
+
+	/**
+	 * Replace repeated phrases of the tracks with label loops.
+	 * A phrase is used only if it does not change the octave in total, has no absolute octave command,
+	 * and neither it nor the following measure starts with a tie, so that it sounds the same at every call.
+	 *
+	 * @param trackCommands MML commands of each track in order of MML, which are replaced in place.
+	 */
+	void apply(List<List<String>> trackCommands) {
+		final int trackCount = trackCommands.size();
+		Map<String, Integer> idMap = new HashMap<>();
+		int[][] measureStarts = new int[trackCount][];
+		long[][] hashes = new long[trackCount][];
+		int[][] octaves = new int[trackCount][];
+		int[][] absoluteOctaves = new int[trackCount][];
+		int[][] notes = new int[trackCount][];
+		boolean[][] tiedStarts = new boolean[trackCount][];
+
+		for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+			List<String> commands = trackCommands.get(trackIndex);
+			final int count = commands.size();
+
+			// prefix sums of hash, absolute octave commands and notes, and octave before each command
+			long[] trackHashes = new long[count + 1];
+			int[] trackOctaves = new int[count + 1];
+			int[] trackAbsoluteOctaves = new int[count + 1];
+			int[] trackNotes = new int[count + 1];
+			List<Integer> starts = new ArrayList<>();
+			starts.add(0);
+			int octave = UNKNOWN_OCTAVE;
+			trackOctaves[0] = octave;
+			for (int i = 0; i < count; i++) {
+				String command = commands.get(i);
+				Integer id = idMap.get(command);
+				if (id == null) {
+					id = idMap.size();
+					idMap.put(command, id);
+				}
+				trackHashes[i + 1] = trackHashes[i] * HASH_BASE + id + 1;
+				trackAbsoluteOctaves[i + 1] = trackAbsoluteOctaves[i];
+				trackNotes[i + 1] = trackNotes[i];
+				if (mmlSymbol.isOctaveChange(command)) {
+					octave = updateOctave(octave, command);
+					if (command.startsWith(mmlSymbol.getOctave())) {
+						trackAbsoluteOctaves[i + 1]++;
+					}
+				} else if (mmlSymbol.isNoteOrTie(command) || mmlSymbol.isRest(command)) {
+					trackNotes[i + 1]++;
+				}
+				trackOctaves[i + 1] = octave;
+				if (command.equals(Midi2MML.LINE_SEPARATOR) && i + 1 < count) {
+					starts.add(i + 1);
+				}
+			}
+			starts.add(count);
+
+			int measureCount = starts.size() - 1;
+			measureStarts[trackIndex] = new int[measureCount + 1];
+			tiedStarts[trackIndex] = new boolean[measureCount + 1];
+			for (int measure = 0; measure <= measureCount; measure++) {
+				int start = starts.get(measure);
+				measureStarts[trackIndex][measure] = start;
+				while (start < count && commands.get(start).trim().isEmpty()) {
+					start++;
+				}
+				tiedStarts[trackIndex][measure] = start < count && mmlSymbol.isTie(commands.get(start));
+			}
+			hashes[trackIndex] = trackHashes;
+			octaves[trackIndex] = trackOctaves;
+			absoluteOctaves[trackIndex] = trackAbsoluteOctaves;
+			notes[trackIndex] = trackNotes;
+		}
+
+		// group the spans of whole measures by their hash and starting octave
+		Map<Long, Phrase> candidates = new LinkedHashMap<>();
+		for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+			int[] starts = measureStarts[trackIndex];
+			for (int measure = 0; measure + 1 < starts.length; measure++) {
+				for (int measureCount = 1; measureCount <= MAX_PHRASE_MEASURES
+						&& measure + measureCount < starts.length; measureCount++) {
+					int start = starts[measure];
+					int end = starts[measure + measureCount];
+					int octave = octaves[trackIndex][start];
+					if (octave == UNKNOWN_OCTAVE || octaves[trackIndex][end] != octave
+							|| absoluteOctaves[trackIndex][end] != absoluteOctaves[trackIndex][start]
+							|| notes[trackIndex][end] == notes[trackIndex][start]
+							|| tiedStarts[trackIndex][measure] || tiedStarts[trackIndex][measure + measureCount]) {
+						continue;
+					}
+
+					long hash = spanHash(hashes[trackIndex], start, end);
+					long key = (hash * 31 + octave) * 31 + measureCount;
+					Phrase phrase = candidates.get(key);
+					if (phrase == null) {
+						phrase = new Phrase();
+						phrase.measureCount = measureCount;
+						candidates.put(key, phrase);
+					}
+					phrase.occurrences.add(new int[] { trackIndex, measure });
+				}
+			}
+		}
+
+		// choose the phrases which save the most compiled bytes, re-evaluating them lazily
+		// as the measures are taken by the chosen phrases
+		boolean[][] usedMeasures = new boolean[trackCount][];
+		for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+			usedMeasures[trackIndex] = new boolean[measureStarts[trackIndex].length];
+		}
+		PriorityQueue<Phrase> queue = new PriorityQueue<>(Math.max(candidates.size(), 1),
+				(phrase1, phrase2) -> Integer.compare(phrase2.saving, phrase1.saving));
+		for (Phrase phrase : candidates.values()) {
+			if (phrase.occurrences.size() >= 2) {
+				phrase.bodySize = getBodySize(phrase, trackCommands, measureStarts);
+				phrase.saving = getSaving(phrase.occurrences.size(), phrase.bodySize);
+				if (phrase.bodySize > MMLSizeEstimator.LOOP_CALL_BYTES && phrase.saving > 0) {
+					queue.add(phrase);
+				}
+			}
+		}
+
+		Map<Long, Phrase> chosenOccurrences = new HashMap<>();
+		while (!queue.isEmpty() && phraseCount < MAX_PHRASE_COUNT) {
+			Phrase phrase = queue.poll();
+			List<int[]> occurrences = getFreeOccurrences(phrase, trackCommands, measureStarts, usedMeasures);
+			int saving = getSaving(occurrences.size(), phrase.bodySize);
+			if (saving <= 0) {
+				continue;
+			}
+			if (!queue.isEmpty() && saving < queue.peek().saving) {
+				phrase.saving = saving;
+				queue.add(phrase);
+				continue;
+			}
+
+			phraseCount++;
+			phrase.label = phraseCount;
+			phrase.occurrences = occurrences;
+			for (int[] occurrence : occurrences) {
+				for (int measure = occurrence[1]; measure < occurrence[1] + phrase.measureCount; measure++) {
+					usedMeasures[occurrence[0]][measure] = true;
+				}
+				chosenOccurrences.put(getOccurrenceKey(occurrence[0], occurrence[1]), phrase);
+			}
+		}
+
+		if (phraseCount != 0) {
+			// the saving is measured on the whole tracks, as the calls also change the lengths written after them
+			for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+				List<String> commands = trackCommands.get(trackIndex);
+				savedBytes += estimateCommands(commands);
+				replacePhrases(trackIndex, commands, measureStarts[trackIndex], chosenOccurrences);
+				savedBytes -= estimateCommands(commands);
+			}
+		}
+	}
+
+	/**
+	 * Replace the chosen occurrences of a track with label loops.
+	 */
+	private void replacePhrases(int trackIndex, List<String> commands, int[] measureStarts,
+			Map<Long, Phrase> chosenOccurrences) {
+		List<String> replaced = new ArrayList<>(commands.size());
+		int measure = 0;
+		while (measure + 1 < measureStarts.length) {
+			Phrase phrase = chosenOccurrences.get(getOccurrenceKey(trackIndex, measure));
+			if (phrase == null) {
+				for (int i = measureStarts[measure]; i < measureStarts[measure + 1]; i++) {
+					replaced.add(commands.get(i));
+				}
+				measure++;
+				continue;
+			}
+
+			// consecutive calls are written as a single call with the repeat count
+			int firstMeasure = measure;
+			int repeats = 0;
+			do {
+				measure += phrase.measureCount;
+				repeats++;
+			} while (measure + 1 < measureStarts.length
+					&& chosenOccurrences.get(getOccurrenceKey(trackIndex, measure)) == phrase);
+
+			StringBuilder sb = new StringBuilder();
+			sb.append(mmlSymbol.getLoopLabelStart()).append(phrase.label).append(mmlSymbol.getLoopLabelEnd());
+			if (!phrase.defined) {
+				// the first occurrence defines the loop, and the others call it
+				sb.append(mmlSymbol.getLoopStart());
+				for (int i = measureStarts[firstMeasure]; i < measureStarts[firstMeasure + phrase.measureCount]; i++) {
+					sb.append(commands.get(i));
+				}
+				sb.append(mmlSymbol.getLoopEnd());
+				phrase.defined = true;
+			}
+			if (repeats > 1) {
+				sb.append(repeats);
+			}
+			replaced.add(sb.toString());
+		}
+
+		commands.clear();
+		commands.addAll(replaced);
+	}
+
+	/**
+	 * Get the occurrences of a phrase which do not overlap each other nor the chosen phrases.
+	 * Occurrences are compared command by command, in case of a hash collision.
+	 */
+	private static List<int[]> getFreeOccurrences(Phrase phrase, List<List<String>> trackCommands,
+			int[][] measureStarts, boolean[][] usedMeasures) {
+		List<int[]> occurrences = new ArrayList<>();
+		int[] first = null;
+		int lastTrackIndex = -1;
+		int lastEndMeasure = 0;
+		for (int[] occurrence : phrase.occurrences) {
+			int trackIndex = occurrence[0];
+			int measure = occurrence[1];
+			if (trackIndex == lastTrackIndex && measure < lastEndMeasure) {
+				continue;
+			}
+
+			boolean free = true;
+			for (int m = measure; m < measure + phrase.measureCount; m++) {
+				if (usedMeasures[trackIndex][m]) {
+					free = false;
+					break;
+				}
+			}
+			if (!free) {
+				continue;
+			}
+
+			if (first == null) {
+				first = occurrence;
+			} else if (!sameSpan(trackCommands, measureStarts, first, occurrence, phrase.measureCount)) {
+				continue;
+			}
+			occurrences.add(occurrence);
+			lastTrackIndex = trackIndex;
+			lastEndMeasure = measure + phrase.measureCount;
+		}
+		return occurrences;
+	}
+
+	private static boolean sameSpan(List<List<String>> trackCommands, int[][] measureStarts, int[] occurrence1,
+			int[] occurrence2, int measureCount) {
+		List<String> commands1 = trackCommands.get(occurrence1[0]);
+		List<String> commands2 = trackCommands.get(occurrence2[0]);
+		int start1 = measureStarts[occurrence1[0]][occurrence1[1]];
+		int end1 = measureStarts[occurrence1[0]][occurrence1[1] + measureCount];
+		int start2 = measureStarts[occurrence2[0]][occurrence2[1]];
+		int end2 = measureStarts[occurrence2[0]][occurrence2[1] + measureCount];
+		if (end1 - start1 != end2 - start2) {
+			return false;
+		}
+		for (int i = 0; i < end1 - start1; i++) {
+			if (!commands1.get(start1 + i).equals(commands2.get(start2 + i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the compiled size of the loop body of a phrase, from its first occurrence.
+	 */
+	private int getBodySize(Phrase phrase, List<List<String>> trackCommands, int[][] measureStarts) {
+		int[] occurrence = phrase.occurrences.get(0);
+		List<String> commands = trackCommands.get(occurrence[0]);
+		StringBuilder sb = new StringBuilder();
+		for (int i = measureStarts[occurrence[0]][occurrence[1]];
+				i < measureStarts[occurrence[0]][occurrence[1] + phrase.measureCount]; i++) {
+			sb.append(commands.get(i));
+		}
+		return (int) sizeEstimator.estimateLoopBody(sb.toString());
+	}
+
+	private long estimateCommands(List<String> commands) {
+		StringBuilder sb = new StringBuilder();
+		for (String command : commands) {
+			sb.append(command);
+		}
+		return sizeEstimator.estimateTrack(sb.toString());
+	}
+
+	/**
+	 * Estimate compiled bytes saved by a phrase, without merging consecutive calls.
+	 * Every occurrence becomes a call, and the body is written once with its end.
+	 */
+	private static int getSaving(int occurrenceCount, int bodySize) {
+		return (occurrenceCount - 1) * bodySize - occurrenceCount * MMLSizeEstimator.LOOP_CALL_BYTES
+				- MMLSizeEstimator.END_BYTES;
+	}
+
+	private int updateOctave(int octave, String command) {
+		if (command.startsWith(mmlSymbol.getOctave())) {
+			return Integer.parseInt(command.substring(mmlSymbol.getOctave().length()));
+		} else if (octave == UNKNOWN_OCTAVE) {
+			return octave;
+		}
+		String octaveUp = !octaveReversed ? mmlSymbol.getOctaveUp() : mmlSymbol.getOctaveDown();
+		return command.startsWith(octaveUp) ? octave + command.length() : octave - command.length();
+	}
+
+	private static long spanHash(long[] hashes, int start, int end) {
+		long power = 1;
+		long base = HASH_BASE;
+		for (int exponent = end - start; exponent != 0; exponent >>= 1) {
+			if ((exponent & 1) != 0) {
+				power *= base;
+			}
+			base *= base;
+		}
+		return hashes[end] - hashes[start] * power;
+	}
+
+	private static long getOccurrenceKey(int trackIndex, int measure) {
+		return ((long) trackIndex << 32) | measure;
+	}
+}
@@ -0,0 +1,253 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.Arrays;
+
+class MMLQuantizer {
+
+	/**
+	 * Number of slots in the quantization memo table. (must be power of 2)
+	 */
+	private static final int MEMO_TABLE_SIZE = 4096;
+
+	/**
+	 * Note length converter used for primitive note lengths.
+	 */
+	private MMLNoteConverter noteConv;
+
+	/**
+	 * Length of a whole note in ticks.
+	 */
+	private long wholeNoteLength;
+
+	/**
+	 * true if adjust note length for simplifying the conversion result.
+	 */
+	private boolean quantizationEnabled;
+
+	/**
+	 * Minimum note length for quantization in ticks. (0: no limit)
+	 */
+	private long quantizeNoteLength;
+
+	/**
+	 * Rate candidates for each 2^n note, indexed by n. (sorted in ascending order)
+	 * Index 0 is the whole note, index 1 is the half note, and so on.
+	 */
+	private double[][] rateCandidates;
+
+	/**
+	 * Shortest primitive note length (dotted notes disassembled) for each rate candidate.
+	 */
+	private int[][] shortestLengthCandidates;
+
+	/**
+	 * Keys of the quantization memo table, 0 for an empty slot.
+	 * A key consists of the note length and the maximum length without whole notes.
+	 */
+	private long[] memoKeys = new long[MEMO_TABLE_SIZE];
+
+	/**
+	 * Quantized lengths of the quantization memo table.
+	 */
+	private long[] memoLengths = new long[MEMO_TABLE_SIZE];
+
+	/**
+	 * Trace of the quantization decisions, null if disabled.
+	 */
+	private ConversionTrace trace;
+
+	/**
+	 * Construct a new quantizer.
+	 *
+	 * @param noteConv            Note length converter, its TPQN must be same as the sequence.
+	 * @param maxDots             Maximum dot counts allowed for dotted-note, -1 for infinity.
+	 * @param quantizePrecision   Minimum note length for quantization.
+	 * @param quantizationEnabled true if adjust note length for simplifying the conversion result.
+	 * @param trace               Trace of the quantization decisions, null to disable it.
+	 */
+	MMLQuantizer(MMLNoteConverter noteConv, int maxDots, int quantizePrecision, boolean quantizationEnabled,
+			ConversionTrace trace) {
+		this.noteConv = noteConv;
+		this.trace = trace;
+		this.wholeNoteLength = (long) noteConv.getTPQN() * 4;
+		this.quantizationEnabled = quantizationEnabled;
+
+		quantizeNoteLength = 0;
+		if (quantizePrecision != Midi2MML.QUANTIZE_PRECISION_AS_IS) {
+			// can have error
+			quantizeNoteLength = (noteConv.getTPQN() * 4) / quantizePrecision;
+		}
+
+		initCandidateTable(maxDots);
+	}
+
+	/**
+	 * Quantize the length of a note.
+	 *
+	 * @param minLength Actual length of the note.
+	 * @param maxLength Maximum length of the note, until the next note.
+	 * @return Quantized note length.
+	 */
+	long quantize(long minLength, long maxLength) {
+		long length = minLength;
+
+		if (!quantizationEnabled) {
+			return length;
+		}
+
+		long wholeNoteCount = (minLength - 1) / wholeNoteLength;
+
+		// remove whole notes temporarily
+		minLength -= wholeNoteLength * wholeNoteCount;
+		maxLength -= wholeNoteLength * wholeNoteCount;
+
+		// a long maximum length only matters by its remainder of c1^c1,
+		// clamp it so that long rests can share the memo entries
+		long maxLengthLimit = wholeNoteLength * 4;
+		if (maxLength > maxLengthLimit) {
+			maxLength = maxLengthLimit + (maxLength - maxLengthLimit - 1) % (wholeNoteLength * 2) + 1;
+		}
+
+		// real songs repeat the same lengths, look up the previous decision first
+		int memoIndex = -1;
+		long memoKey = 0;
+		if (minLength > 0 && maxLength >= Integer.MIN_VALUE && maxLength <= Integer.MAX_VALUE) {
+			memoKey = (minLength << 32) | (maxLength & 0xffffffffL);
+			memoIndex = (int) ((memoKey * 0x9E3779B97F4A7C15L) >>> 32) & (MEMO_TABLE_SIZE - 1);
+			if (memoKeys[memoIndex] == memoKey) {
+				length = memoLengths[memoIndex];
+				if (trace != null) {
+					trace.add(ConversionTrace.TYPE_QUANTIZE, -1, minLength, maxLength, length, 0, 0, 0);
+				}
+				return length + wholeNoteCount * wholeNoteLength;
+			}
+		}
+
+		length = quantizeWithinWholeNote(minLength, maxLength);
+		if (memoIndex != -1) {
+			memoKeys[memoIndex] = memoKey;
+			memoLengths[memoIndex] = length;
+		}
+
+		return length + wholeNoteCount * wholeNoteLength;
+	}
+
+	/**
+	 * Quantize the length of a note which is not longer than a whole note.
+	 *
+	 * @param minLength Actual length of the note, without whole notes.
+	 * @param maxLength Maximum length of the note, without whole notes.
+	 * @return Quantized note length, without whole notes.
+	 */
+	private long quantizeWithinWholeNote(long minLength, long maxLength) {
+		// find the nearest 2^n note
+		// minLength/nearPow2 is almost always in [0.5,1.0]
+		// (almost, because nearPow2 may have slight
+		// error at a very short note)
+		// nearPow2 can be greater than maxLength
+		long nearPow2 = wholeNoteLength;
+		int level = 0;
+		while (nearPow2 / 2 >= minLength) {
+			nearPow2 /= 2;
+			level++;
+		}
+
+		double[] rates = rateCandidates[level];
+		int[] shortestLengths = shortestLengthCandidates[level];
+
+		double rateLowerLimit = (double) minLength / nearPow2;
+		double rateUpperLimit = (double) maxLength / nearPow2;
+
+		double rateNearest = 0.0;
+		double rateBestDistance = Double.MAX_VALUE;
+		for (int i = 0; i < rates.length; i++) {
+			double rateCandidate = Math.min(rates[i], rateUpperLimit);
+
+			double rateDistance = Math.abs(rateLowerLimit - rateCandidate);
+			if (rateDistance <= rateBestDistance) {
+				boolean rateRequiresUpdate = true;
+				if (nearPow2 >= quantizeNoteLength && rateCandidate < rateUpperLimit) {
+					// the candidate is not clamped, so the precomputed length can be used
+					rateRequiresUpdate = (shortestLengths[i] >= quantizeNoteLength);
+				}
+				if (rateRequiresUpdate) {
+					rateNearest = rateCandidate;
+					rateBestDistance = rateDistance;
+				}
+			}
+			if (rateCandidate >= rateUpperLimit)
+				break;
+		}
+		long length = Math.round(nearPow2 * rateNearest);
+
+		if (length < minLength) {
+			int restLength = (int) (maxLength - length);
+			for (int i = noteConv.getPrimitiveNoteLengthCount(restLength, false) - 1; i >= 0; i--) {
+				int restNoteLength = noteConv.getPrimitiveNoteLength(restLength, false, i);
+				if (length + restNoteLength <= minLength) {
+					length += restNoteLength;
+				} else {
+					long oldDistance = minLength - length;
+					long newDistance = (length + restNoteLength) - minLength;
+					if (newDistance <= oldDistance)
+						length += restNoteLength;
+					break;
+				}
+			}
+		}
+
+		if (trace != null) {
+			trace.add(ConversionTrace.TYPE_QUANTIZE, -1, minLength, maxLength, length, nearPow2,
+					Double.doubleToRawLongBits(rateNearest), 0);
+		}
+
+		return length;
+	}
+
+	/**
+	 * Initialize the rate candidate table for each 2^n note.
+	 *
+	 * @param maxDots Maximum dot counts allowed for dotted-note, -1 for infinity.
+	 */
+	private void initCandidateTable(int maxDots) {
+		int levelCount = 0;
+		for (long nearPow2 = wholeNoteLength; nearPow2 >= 1; nearPow2 /= 2) {
+			levelCount++;
+		}
+
+		rateCandidates = new double[levelCount][];
+		shortestLengthCandidates = new int[levelCount][];
+
+		long nearPow2 = wholeNoteLength;
+		int maxDotCount = (maxDots != -1) ? maxDots : Integer.MAX_VALUE;
+		for (int level = 0; level < levelCount; level++, nearPow2 /= 2) {
+			double[] rates = new double[64];
+			int rateCount = 0;
+			rates[rateCount++] = 0.5;
+			rates[rateCount++] = 1.0;
+
+			double dottedNoteRate = 0.5;
+			for (int dot = 1; dot <= maxDotCount; dot++) {
+				if (nearPow2 % (1 << dot) != 0)
+					break;
+
+				dottedNoteRate += Math.pow(0.5, dot + 1.0);
+				rates[rateCount++] = dottedNoteRate; // dotted note (0.75, 0.875...)
+			}
+			if (nearPow2 * 2 % 3 == 0)
+				rates[rateCount++] = 2.0 / 3.0; // triplet
+			rates = Arrays.copyOf(rates, rateCount);
+			Arrays.sort(rates);
+
+			int[] shortestLengths = new int[rateCount];
+			for (int i = 0; i < rateCount; i++) {
+				int noteLengthCandidate = (int) Math.round(nearPow2 * rates[i]);
+				int count = noteConv.getPrimitiveNoteLengthCount(noteLengthCandidate, true);
+				shortestLengths[i] = (count != 0) ? noteConv.getPrimitiveNoteLength(noteLengthCandidate, true, count - 1) : 0;
+			}
+
+			rateCandidates[level] = rates;
+			shortestLengthCandidates[level] = shortestLengths;
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Estimates the size of the N-SPC sequence data which AddmusicK compiles from the MML.
+ * It is a model of the compiler rather than a compiler: notes, rests and ties cost a byte,
+ * and a length byte when the length changes; long notes are split into ties;
+ * octave commands cost nothing; instrument, volume, pan and tempo commands cost two bytes;
+ * macros are expanded from their definitions; loop bodies are counted once plus a call per loop.
+ */
+class MMLSizeEstimator {
+
+	/**
+	 * Ticks of a whole note.
+	 */
+	private static final int WHOLE_NOTE_TICKS = 192;
+
+	/**
+	 * Length of a note when the MML does not specify it. (l8)
+	 */
+	private static final int DEFAULT_NOTE_TICKS = WHOLE_NOTE_TICKS / 8;
+
+	/**
+	 * Maximum length of a single note event in ticks, longer notes are split into ties.
+	 */
+	private static final int MAX_EVENT_TICKS = 0x7f;
+
+	/**
+	 * Bytes of a note, rest or tie event.
+	 */
+	private static final int NOTE_BYTES = 1;
+
+	/**
+	 * Bytes of a length change before a note event.
+	 */
+	private static final int LENGTH_BYTES = 1;
+
+	/**
+	 * Bytes of an instrument, volume, pan or tempo command.
+	 */
+	private static final int COMMAND_BYTES = 2;
+
+	/**
+	 * Bytes of a loop call. (command, address and count)
+	 */
+	static final int LOOP_CALL_BYTES = 4;
+
+	/**
+	 * Bytes of the end of a loop body or a track.
+	 */
+	static final int END_BYTES = 1;
+
+	/**
+	 * Bytes of the pattern list and the channel pointers of a song with a single pattern.
+	 */
+	private static final int SONG_HEADER_BYTES = 20;
+
+	/**
+	 * Bytes of an entry of the instrument table.
+	 */
+	private static final int INSTRUMENT_BYTES = 6;
+
+	/**
+	 * MML symbol set.
+	 */
+	private final MMLSymbol mmlSymbol;
+
+	/**
+	 * Replacement text of each macro.
+	 */
+	private final Map<String, String> macros = new HashMap<>();
+
+	/**
+	 * Lengths of the macro names, longest first.
+	 */
+	private final TreeSet<Integer> macroNameLengths = new TreeSet<>((length1, length2) -> Integer.compare(length2, length1));
+
+	/**
+	 * Number of entries of the instrument table.
+	 */
+	private int instrumentCount;
+
+	/**
+	 * Length of the last note event in ticks, 0 if unknown.
+	 */
+	private int lastLength;
+
+	/**
+	 * True if inside a triplet.
+	 */
+	private boolean triplet;
+
+	/**
+	 * Construct a new size estimator.
+	 *
+	 * @param mmlSymbol MML symbol set.
+	 * @param header Header of the MML, which contains the instruments and the macro definitions.
+	 */
+	MMLSizeEstimator(MMLSymbol mmlSymbol, String header) {
+		this.mmlSymbol = mmlSymbol;
+
+		boolean instruments = false;
+		for (String line : header.split("\r?\n")) {
+			line = line.trim();
+			if (line.startsWith("#instruments")) {
+				instruments = true;
+			} else if (instruments) {
+				if (line.startsWith("}")) {
+					instruments = false;
+				} else if (!line.isEmpty()) {
+					instrumentCount++;
+				}
+			} else if (line.length() >= 2 && line.startsWith("\"") && line.endsWith("\"")) {
+				// "NAME = replacement"
+				int separatorIndex = line.indexOf('=');
+				if (separatorIndex != -1) {
+					String name = line.substring(1, separatorIndex).trim();
+					if (!name.isEmpty()) {
+						macros.put(name, line.substring(separatorIndex + 1, line.length() - 1).trim());
+						macroNameLengths.add(name.length());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the estimated size of the data shared by all tracks.
+	 *
+	 * @return Size in bytes.
+	 */
+	long getHeaderSize() {
+		return SONG_HEADER_BYTES + (long) instrumentCount * INSTRUMENT_BYTES;
+	}
+
+	/**
+	 * Get the estimated size of a track.
+	 *
+	 * @param mml MML text of the track.
+	 * @return Size in bytes.
+	 */
+	long estimateTrack(String mml) {
+		lastLength = 0;
+		triplet = false;
+		return estimate(mml, 0, mml.length()) + END_BYTES;
+	}
+
+	/**
+	 * Get the estimated size of a loop body, without the call and the end of the body.
+	 * The length of the first note is always written, as the compiler does after a loop call.
+	 *
+	 * @param mml MML text of the loop body.
+	 * @return Size in bytes.
+	 */
+	long estimateLoopBody(String mml) {
+		lastLength = 0;
+		triplet = false;
+		return estimate(mml, 0, mml.length());
+	}
+
+	/**
+	 * Estimate the size of a part of MML text.
+	 */
+	private long estimate(String mml, int start, int end) {
+		long size = 0;
+		int index = start;
+		while (index < end) {
+			char c = mml.charAt(index);
+			if (Character.isWhitespace(c)) {
+				index++;
+			} else if (c == ';') {
+				// comment
+				while (index < end && mml.charAt(index) != '\n') {
+					index++;
+				}
+			} else if (mml.startsWith(mmlSymbol.getLoopLabelStart(), index)) {
+				index = skipDigits(mml, index + mmlSymbol.getLoopLabelStart().length(), end);
+				if (mml.startsWith(mmlSymbol.getLoopLabelEnd(), index)) {
+					index += mmlSymbol.getLoopLabelEnd().length();
+				}
+				if (!mml.startsWith(mmlSymbol.getLoopStart(), index)) {
+					// call of a label loop defined before
+					size += LOOP_CALL_BYTES;
+					index = skipDigits(mml, index, end);
+					lastLength = 0;
+				}
+			} else if (mml.startsWith(mmlSymbol.getLoopStart(), index)) {
+				int bodyStart = index + mmlSymbol.getLoopStart().length();
+				int bodyEnd = findLoopEnd(mml, bodyStart, end);
+				lastLength = 0;
+				size += LOOP_CALL_BYTES + estimate(mml, bodyStart, bodyEnd) + END_BYTES;
+				lastLength = 0;
+				index = Math.min(bodyEnd + mmlSymbol.getLoopEnd().length(), end);
+				index = skipDigits(mml, index, end);
+			} else if (mml.startsWith(mmlSymbol.getTripletStart(0), index)) {
+				triplet = true;
+				index += mmlSymbol.getTripletStart(0).length();
+			} else if (mml.startsWith(mmlSymbol.getTripletEnd(0), index)) {
+				triplet = false;
+				index += mmlSymbol.getTripletEnd(0).length();
+			} else if (mml.startsWith(mmlSymbol.getTie(), index) || mml.startsWith(mmlSymbol.getRest(), index)) {
+				index += mml.startsWith(mmlSymbol.getTie(), index) ? mmlSymbol.getTie().length()
+						: mmlSymbol.getRest().length();
+				int lengthEnd = skipLength(mml, index, end);
+				size += getNoteSize(getTicks(mml, index, lengthEnd));
+				index = lengthEnd;
+			} else if (mml.startsWith(mmlSymbol.getOctave(), index)) {
+				index = skipDigits(mml, index + mmlSymbol.getOctave().length(), end);
+			} else if (mml.startsWith(mmlSymbol.getOctaveUp(), index)) {
+				index += mmlSymbol.getOctaveUp().length();
+			} else if (mml.startsWith(mmlSymbol.getOctaveDown(), index)) {
+				index += mmlSymbol.getOctaveDown().length();
+			} else if (mml.startsWith(mmlSymbol.getInstrument(), index)) {
+				size += COMMAND_BYTES;
+				index = skipDigits(mml, index + mmlSymbol.getInstrument().length(), end);
+			} else if (mml.startsWith(mmlSymbol.getVolume(), index)) {
+				size += COMMAND_BYTES;
+				index = skipParameters(mml, index + mmlSymbol.getVolume().length(), end);
+			} else if (mml.startsWith(mmlSymbol.getPan(), index)) {
+				size += COMMAND_BYTES;
+				index = skipParameters(mml, index + mmlSymbol.getPan().length(), end);
+			} else if (mml.startsWith(mmlSymbol.getTempo(), index)) {
+				size += COMMAND_BYTES;
+				index = skipDigits(mml, index + mmlSymbol.getTempo().length(), end);
+			} else {
+				int noteEnd = getNoteNameEnd(mml, index);
+				if (noteEnd != -1) {
+					int lengthEnd = skipLength(mml, noteEnd, end);
+					size += getNoteSize(getTicks(mml, noteEnd, lengthEnd));
+					index = lengthEnd;
+				} else {
+					String macro = findMacro(mml, index, end);
+					if (macro != null) {
+						String replacement = macros.get(macro);
+						size += estimate(replacement, 0, replacement.length());
+						index += macro.length();
+					} else {
+						index++;
+					}
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Get the size of a note, rest or tie, and remember its length.
+	 */
+	private int getNoteSize(int ticks) {
+		if (triplet) {
+			ticks = ticks * 2 / 3;
+		}
+		int eventCount = Math.max((ticks + MAX_EVENT_TICKS - 1) / MAX_EVENT_TICKS, 1);
+		int eventLength = (ticks + eventCount - 1) / eventCount;
+		int size = eventCount * NOTE_BYTES;
+		if (eventLength != lastLength) {
+			size += LENGTH_BYTES;
+			lastLength = eventLength;
+		}
+		return size;
+	}
+
+	/**
+	 * Get the length in ticks, such as "4..", "16" or "=12".
+	 */
+	private int getTicks(String mml, int start, int end) {
+		if (start == end) {
+			return DEFAULT_NOTE_TICKS;
+		}
+		if (mml.startsWith(mmlSymbol.getTicks(), start)) {
+			return parseInt(mml, start + mmlSymbol.getTicks().length(), end, DEFAULT_NOTE_TICKS);
+		}
+
+		int digitsEnd = skipDigits(mml, start, end);
+		int noteLength = parseInt(mml, start, digitsEnd, 8);
+		int ticks = WHOLE_NOTE_TICKS / Math.max(noteLength, 1);
+		int dotTicks = ticks;
+		for (int index = digitsEnd; index < end && mml.charAt(index) == '.'; index++) {
+			dotTicks /= 2;
+			ticks += dotTicks;
+		}
+		return ticks;
+	}
+
+	private int skipLength(String mml, int index, int end) {
+		if (mml.startsWith(mmlSymbol.getTicks(), index)) {
+			return skipDigits(mml, index + mmlSymbol.getTicks().length(), end);
+		}
+		index = skipDigits(mml, index, end);
+		while (index < end && mml.charAt(index) == '.') {
+			index++;
+		}
+		return index;
+	}
+
+	private int getNoteNameEnd(String mml, int index) {
+		int noteEnd = -1;
+		for (String note : mmlSymbol.getNotes()) {
+			if (mml.startsWith(note, index) && index + note.length() > noteEnd) {
+				noteEnd = index + note.length();
+			}
+		}
+		return noteEnd;
+	}
+
+	private String findMacro(String mml, int index, int end) {
+		if (!Character.isUpperCase(mml.charAt(index))) {
+			return null;
+		}
+		for (int nameLength : macroNameLengths) {
+			if (index + nameLength <= end) {
+				String name = mml.substring(index, index + nameLength);
+				if (macros.containsKey(name)) {
+					return name;
+				}
+			}
+		}
+		return null;
+	}
+
+	private int findLoopEnd(String mml, int index, int end) {
+		int depth = 0;
+		while (index < end) {
+			if (mml.startsWith(mmlSymbol.getLoopStart(), index)) {
+				depth++;
+			} else if (mml.startsWith(mmlSymbol.getLoopEnd(), index)) {
+				if (depth == 0) {
+					return index;
+				}
+				depth--;
+			}
+			index++;
+		}
+		return end;
+	}
+
+	private static int skipDigits(String mml, int index, int end) {
+		while (index < end && Character.isDigit(mml.charAt(index))) {
+			index++;
+		}
+		return index;
+	}
+
+	private static int skipParameters(String mml, int index, int end) {
+		index = skipDigits(mml, index, end);
+		while (index < end && mml.charAt(index) == ',') {
+			index = skipDigits(mml, index + 1, end);
+		}
+		return index;
+	}
+
+	private static int parseInt(String mml, int start, int end, int defaultValue) {
+		int digitsEnd = skipDigits(mml, start, end);
+		if (digitsEnd == start) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(mml.substring(start, digitsEnd));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Sequence;
+
+/**
+ * Searches the conversion options for the most faithful MML whose estimated compiled size fits a budget.
+ * Candidates are made coarser step by step from the given options: quantize precision, dot count,
+ * timebase, triplets and tick notation. They are converted in parallel, a batch at a time,
+ * from the most faithful one, and the search stops at the first batch which has a fitting result.
+ * All candidates convert the same sequence and share the note tables of the same timebase.
+ */
+class MMLSizeSearch {
+
+	/**
+	 * Coarsest quantize precision tried.
+	 */
+	private static final int MIN_QUANTIZE_PRECISION = 8;
+
+	/**
+	 * Coarser timebases tried, in descending order.
+	 */
+	private static final int[] COARSE_RESOLUTIONS = { 24, 12 };
+
+	/**
+	 * Options of the search, including the size limit.
+	 */
+	private final Midi2MML options;
+
+	/**
+	 * Note converters shared by the candidates.
+	 */
+	private final Map<String, MMLNoteConverter> noteConverters = new ConcurrentHashMap<>();
+
+	/**
+	 * Construct a new size search.
+	 *
+	 * @param options Options to start from, its maximum size must be limited.
+	 */
+	MMLSizeSearch(Midi2MML options) {
+		this.options = options;
+	}
+
+	/**
+	 * Get the candidate options, from the most faithful one.
+	 * Each step of an option to a coarser value costs the same,
+	 * and candidates of the same cost keep the order of the steps.
+	 *
+	 * @return List of candidate options, the first one is same as the given options.
+	 */
+	List<Midi2MML> getCandidates() {
+		List<Integer> precisions = new ArrayList<>();
+		precisions.add(options.getQuantizePrecision());
+		if (options.isQuantizationEnabled()) {
+			int precision = (options.getQuantizePrecision() == Midi2MML.QUANTIZE_PRECISION_AS_IS)
+					? Midi2MML.DEFAULT_QUANTIZE_PRECISION
+					: options.getQuantizePrecision() / 2;
+			for (; precision >= MIN_QUANTIZE_PRECISION; precision /= 2) {
+				precisions.add(precision);
+			}
+		}
+
+		List<Integer> dots = new ArrayList<>();
+		dots.add(options.getMaxDots());
+		for (int dot = 1; dot >= 0; dot--) {
+			if (options.getMaxDots() < 0 || dot < options.getMaxDots()) {
+				dots.add(dot);
+			}
+		}
+
+		List<Integer> resolutions = new ArrayList<>();
+		resolutions.add(options.getTargetResolution());
+		for (int resolution : COARSE_RESOLUTIONS) {
+			if (options.getTargetResolution() == Midi2MML.RESOLUTION_AS_IS || resolution < options.getTargetResolution()) {
+				resolutions.add(resolution);
+			}
+		}
+
+		int tripletSteps = options.getTripletPreference() ? 2 : 1;
+		int tickSteps = options.getUseTicks() ? 2 : 1;
+
+		// bucket the candidates by their total steps, it keeps the order in each bucket
+		int maxCost = precisions.size() + dots.size() + resolutions.size() + tripletSteps + tickSteps - 5;
+		List<List<Midi2MML>> buckets = new ArrayList<>();
+		for (int cost = 0; cost <= maxCost; cost++) {
+			buckets.add(new ArrayList<>());
+		}
+		for (int precisionIndex = 0; precisionIndex < precisions.size(); precisionIndex++) {
+			for (int dotIndex = 0; dotIndex < dots.size(); dotIndex++) {
+				for (int resolutionIndex = 0; resolutionIndex < resolutions.size(); resolutionIndex++) {
+					for (int tripletIndex = 0; tripletIndex < tripletSteps; tripletIndex++) {
+						for (int tickIndex = 0; tickIndex < tickSteps; tickIndex++) {
+							Midi2MML candidate = new Midi2MML(options);
+							candidate.setMaxSize(Midi2MML.MAX_SIZE_UNLIMITED);
+							candidate.setProgressListener(null);
+							candidate.setThreadCount(Midi2MML.DEFAULT_THREAD_COUNT);
+							candidate.setNoteConverterCache(noteConverters);
+							candidate.setQuantizePrecision(precisions.get(precisionIndex));
+							candidate.setMaxDots(dots.get(dotIndex));
+							candidate.setTargetResolution(resolutions.get(resolutionIndex));
+							candidate.setTripletPreference(options.getTripletPreference() && tripletIndex == 0);
+							candidate.setUseTicks(options.getUseTicks() && tickIndex == 0);
+							buckets.get(precisionIndex + dotIndex + resolutionIndex + tripletIndex + tickIndex).add(candidate);
+						}
+					}
+				}
+			}
+		}
+
+		List<Midi2MML> candidates = new ArrayList<>();
+		for (List<Midi2MML> bucket : buckets) {
+			candidates.addAll(bucket);
+		}
+		return candidates;
+	}
+
+	/**
+	 * Convert the sequence with the most faithful candidate which fits the size limit.
+	 * If no candidate fits, the smallest result is returned with a warning.
+	 *
+	 * @param seq Sequence to be converted, it is not modified.
+	 * @param token Token to stop the search, null if it cannot be cancelled.
+	 * @return Conversion result, its options are the chosen candidate.
+	 * @throws IOException throws if I/O error is happened.
+	 * @throws InvalidMidiDataException throws if unexpected MIDI event is appeared.
+	 */
+	MMLConversion search(Sequence seq, CancellationToken token) throws IOException, InvalidMidiDataException {
+		List<Midi2MML> candidates = getCandidates();
+		// the candidates left running are stopped by this token when the search ends
+		CancellationToken searchToken = new CancellationToken(token);
+		int threadCount = Math.min(Runtime.getRuntime().availableProcessors(), candidates.size());
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			MMLConversion smallest = null;
+			for (int batchStart = 0; batchStart < candidates.size(); batchStart += threadCount) {
+				List<Future<MMLConversion>> futures = new ArrayList<>();
+				for (Midi2MML candidate : candidates.subList(batchStart, Math.min(batchStart + threadCount, candidates.size()))) {
+					Callable<MMLConversion> task = () -> candidate.convert(seq, searchToken);
+					futures.add(executor.submit(task));
+				}
+
+				// results of a batch are in the order of faithfulness
+				for (Future<MMLConversion> future : futures) {
+					MMLConversion conversion = Midi2MML.getTaskResult(future, searchToken);
+					long size = conversion.getStats().getEstimatedSize();
+					if (size <= options.getMaxSize()) {
+						return conversion;
+					}
+					if (smallest == null || size < smallest.getStats().getEstimatedSize()) {
+						smallest = conversion;
+					}
+				}
+			}
+
+			System.err.println("Warning: No candidate fits in " + options.getMaxSize() + " bytes, the smallest one is "
+					+ smallest.getStats().getEstimatedSize() + " bytes.");
+			return smallest;
+		} finally {
+			searchToken.cancel();
+			executor.shutdown();
+		}
+	}
+}
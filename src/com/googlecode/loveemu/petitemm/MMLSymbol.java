@@ -7,6 +7,11 @@ public class MMLSymbol {
 	 */
 	private String[] notes = {"c", "c+", "d", "d+", "e", "f", "f+", "g", "g+", "a", "a+", "b"};
 	
+	/**
+	 * MML note name table indexed by the first character of name. (ASCII only)
+	 */
+	private String[][] notesByFirstChar = indexNotes(notes);
+	
 	/**
 	 * MML text for rest.
 	 */
@@ -72,6 +77,26 @@ public class MMLSymbol {
 	 */
 	private boolean tripletHaveLengthInBracket = true;
 	
+	/**
+	 * MML text for loop start.
+	 */
+	private String loopStart = "[";
+	
+	/**
+	 * MML text for loop end, followed by the repeat count.
+	 */
+	private String loopEnd = "]";
+	
+	/**
+	 * MML text for label loop start, followed by the label number.
+	 */
+	private String loopLabelStart = "(";
+	
+	/**
+	 * MML text for label loop end, after the label number.
+	 */
+	private String loopLabelEnd = ")";
+	
 	/**
 	 * MML text for instrument macro.
 	 */
@@ -106,6 +131,7 @@ public class MMLSymbol {
 	 */
 	public MMLSymbol(MMLSymbol obj) {
 		notes = obj.notes;
+		notesByFirstChar = obj.notesByFirstChar;
 		rest = obj.rest;
 		tie = obj.tie;
 		octave = obj.octave;
@@ -116,6 +142,10 @@ public class MMLSymbol {
 		//trackEnd = obj.trackEnd;
 		tripletStart = obj.tripletStart;
 		tripletEnd = obj.tripletEnd;
+		loopStart = obj.loopStart;
+		loopEnd = obj.loopEnd;
+		loopLabelStart = obj.loopLabelStart;
+		loopLabelEnd = obj.loopLabelEnd;
 		instrumentMacro = obj.instrumentMacro;
 		volumeMacro = obj.volumeMacro;
 		panMacro = obj.panMacro;
@@ -132,6 +162,7 @@ public class MMLSymbol {
 	
 	public void setNotes(String[] notes) {
 		this.notes = notes;
+		this.notesByFirstChar = indexNotes(notes);
 	}
 	
 	public String getRest() {
@@ -222,6 +253,38 @@ public class MMLSymbol {
 		this.tripletHaveLengthInBracket = tripletHaveLengthInBracket;
 	}
 	
+	public String getLoopStart() {
+		return loopStart;
+	}
+	
+	public void setLoopStart(String loopStart) {
+		this.loopStart = loopStart;
+	}
+	
+	public String getLoopEnd() {
+		return loopEnd;
+	}
+	
+	public void setLoopEnd(String loopEnd) {
+		this.loopEnd = loopEnd;
+	}
+	
+	public String getLoopLabelStart() {
+		return loopLabelStart;
+	}
+	
+	public void setLoopLabelStart(String loopLabelStart) {
+		this.loopLabelStart = loopLabelStart;
+	}
+	
+	public String getLoopLabelEnd() {
+		return loopLabelEnd;
+	}
+	
+	public void setLoopLabelEnd(String loopLabelEnd) {
+		this.loopLabelEnd = loopLabelEnd;
+	}
+	
 	public String getInstrumentMacro() {
 		return instrumentMacro;
 	}
@@ -275,7 +338,11 @@ public class MMLSymbol {
 	}
 	
 	public boolean isNote(String command) {
-		for(String note : notes) {
+		String[] candidates = notes;
+		if(!command.isEmpty() && command.charAt(0) < notesByFirstChar.length) {
+			candidates = notesByFirstChar[command.charAt(0)];
+		}
+		for(String note : candidates) {
 			if(command.startsWith(note)) {
 				return true;
 			}
@@ -292,7 +359,64 @@ public class MMLSymbol {
 	}
 	
 	public boolean isOctaveChange(String command) {
-		return command.matches("o[-]?\\d+") || command.matches("<+|>+");
+		int length = command.length();
+		if(length == 0) {
+			return false;
+		}
+		
+		char first = command.charAt(0);
+		if(first == 'o') {
+			// o[-]?\d+
+			int index = 1;
+			if(index < length && command.charAt(index) == '-') {
+				index++;
+			}
+			if(index == length) {
+				return false;
+			}
+			for(; index < length; index++) {
+				char c = command.charAt(index);
+				if(c < '0' || c > '9') {
+					return false;
+				}
+			}
+			return true;
+		} else if(first == '<' || first == '>') {
+			// <+|>+
+			for(int index = 1; index < length; index++) {
+				if(command.charAt(index) != first) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Build the note name table indexed by the first character of name.
+	 * 
+	 * @param notes MML note name table.
+	 * @return Note names for each ASCII character, notes which start with other characters are not included.
+	 */
+	private static String[][] indexNotes(String[] notes) {
+		String[][] table = new String[128][];
+		for(int c = 0; c < table.length; c++) {
+			int count = 0;
+			for(String note : notes) {
+				if(!note.isEmpty() && note.charAt(0) == c) {
+					count++;
+				}
+			}
+			table[c] = new String[count];
+			count = 0;
+			for(String note : notes) {
+				if(!note.isEmpty() && note.charAt(0) == c) {
+					table[c][count++] = note;
+				}
+			}
+		}
+		return table;
 	}
 	
 }
@@ -1,15 +1,26 @@
 package com.googlecode.loveemu.petitemm;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
@@ -66,6 +77,26 @@ public class Midi2MML {
 	 */
 	public final static int DEFAULT_OCTAVE_OFFSET = 0;
 
+	/**
+	 * Constant for no size limit.
+	 */
+	public static final long MAX_SIZE_UNLIMITED = 0;
+
+	/**
+	 * Constant for keeping all control changes.
+	 */
+	public static final int CC_THINNING_DISABLED = -1;
+
+	/**
+	 * Default number of threads which convert the tracks.
+	 */
+	public static final int DEFAULT_THREAD_COUNT = 1;
+
+	/**
+	 * Constant for converting all measures.
+	 */
+	public static final int MEASURE_RANGE_ALL = 0;
+
 	public static final String LINE_SEPARATOR = System.getProperty("line.separator");
 	
 	/**
@@ -78,6 +109,21 @@ public class Midi2MML {
 	 */
 	public static final int MML_TPQN = 48;
 
+	/**
+	 * The cancellation token is checked when (loop counter & CANCELLATION_CHECK_MASK) == 0.
+	 */
+	static final int CANCELLATION_CHECK_MASK = 0xff;
+
+	/**
+	 * Minimum number of MIDI events of a track segment converted in parallel.
+	 */
+	private static final int MIN_SEGMENT_EVENTS = 2048;
+
+	/**
+	 * Number of MIDI events converted before a track segment to predict the state at its start.
+	 */
+	private static final int SEGMENT_WARM_UP_EVENTS = 64;
+
 	/**
 	 * MML symbol set.
 	 */
@@ -164,13 +210,74 @@ public class Midi2MML {
 	private boolean useTicks = false;
 
 	/**
-	 * true if write debug informations to stdout.
+	 * true if repeated commands are written as loops.
+	 */
+	private boolean useLoops = false;
+
+	/**
+	 * true if phrases repeated across tracks are written as label loops.
+	 */
+	private boolean useLabelLoops = false;
+
+	/**
+	 * true if the estimated compiled size is written as a comment.
+	 */
+	private boolean sizeComment = false;
+
+	/**
+	 * Number of trace records kept for each conversion, 0 to disable the trace.
 	 */
-	private static final boolean DEBUG_DUMP = false;
+	private int traceCapacity = 0;
 
-	private List<Integer> instruments = new ArrayList<>();
-	private List<MidiVolume> volumes = new ArrayList<>();
-	private List<Integer> pannings = new ArrayList<>();
+	/**
+	 * Listener of the conversion progress, null if not used.
+	 */
+	private ConversionProgressListener progressListener = null;
+
+	/**
+	 * Maximum estimated size of the compiled MML in bytes. (0: unlimited)
+	 */
+	private long maxSize = MAX_SIZE_UNLIMITED;
+
+	/**
+	 * Maximum value error of thinned volume, pan and expression curves. (-1: no thinning)
+	 */
+	private int ccThinningError = CC_THINNING_DISABLED;
+
+	/**
+	 * Minimum interval of thinned control changes of a controller in MML ticks.
+	 */
+	private int ccThinningInterval = 0;
+
+	/**
+	 * Maximum difference of N-SPC tempo merged into a tempo ramp. (0: drop repeated tempo only)
+	 */
+	private int tempoTolerance = 0;
+
+	/**
+	 * Number of threads which convert the tracks. (1: convert them in the calling thread)
+	 */
+	private int threadCount = DEFAULT_THREAD_COUNT;
+
+	/**
+	 * First measure to be converted, starts from 1. (0: all measures)
+	 */
+	private int firstMeasure = MEASURE_RANGE_ALL;
+
+	/**
+	 * Last measure to be converted, starts from 1. (0: all measures)
+	 */
+	private int lastMeasure = MEASURE_RANGE_ALL;
+
+	/**
+	 * Note converters shared by the conversions of a size search, null to create one for each conversion.
+	 */
+	private Map<String, MMLNoteConverter> noteConverterCache = null;
+
+	/**
+	 * Result of the last writeMML() call, used by writeMacros().
+	 */
+	private MMLConversion lastConversion;
 
 	/**
 	 * Construct a new MIDI to MML converter.
@@ -241,6 +348,18 @@ public class Midi2MML {
 		this.multiplyVolumes = obj.multiplyVolumes;
 		this.noPanCorrection = obj.noPanCorrection;
 		this.useTicks = obj.useTicks;
+		this.useLoops = obj.useLoops;
+		this.useLabelLoops = obj.useLabelLoops;
+		this.sizeComment = obj.sizeComment;
+		this.traceCapacity = obj.traceCapacity;
+		this.progressListener = obj.progressListener;
+		this.maxSize = obj.maxSize;
+		this.ccThinningError = obj.ccThinningError;
+		this.ccThinningInterval = obj.ccThinningInterval;
+		this.tempoTolerance = obj.tempoTolerance;
+		this.threadCount = obj.threadCount;
+		this.firstMeasure = obj.firstMeasure;
+		this.lastMeasure = obj.lastMeasure;
 	}
 
 	/**
@@ -395,6 +514,61 @@ public class Midi2MML {
 	public void setUseTicks(boolean useTicks) {
 		this.useTicks = useTicks;
 	}
+
+	/**
+	 * Get if consecutive repeats of commands are written as loops. ([...]n)
+	 * 
+	 * @return true if loops are used.
+	 */
+	public boolean getUseLoops() {
+		return useLoops;
+	}
+
+	/**
+	 * Set if consecutive repeats of commands are written as loops. ([...]n)
+	 * 
+	 * @param useLoops true if loops are used.
+	 */
+	public void setUseLoops(boolean useLoops) {
+		this.useLoops = useLoops;
+	}
+
+	/**
+	 * Get if phrases repeated across tracks are written once as label loops. ((n)[...])
+	 * 
+	 * @return true if label loops are used.
+	 */
+	public boolean getUseLabelLoops() {
+		return useLabelLoops;
+	}
+
+	/**
+	 * Set if phrases repeated across tracks are written once as label loops. ((n)[...])
+	 * 
+	 * @param useLabelLoops true if label loops are used.
+	 */
+	public void setUseLabelLoops(boolean useLabelLoops) {
+		this.useLabelLoops = useLabelLoops;
+	}
+
+	/**
+	 * Get if the estimated compiled size of each track is written as a comment after the macros.
+	 * 
+	 * @return true if the comment is written.
+	 */
+	public boolean getSizeComment() {
+		return sizeComment;
+	}
+
+	/**
+	 * Set if the estimated compiled size of each track is written as a comment after the macros.
+	 * The estimate is available from ConversionStats.getEstimatedSize() either way.
+	 * 
+	 * @param sizeComment true if the comment is written.
+	 */
+	public void setSizeComment(boolean sizeComment) {
+		this.sizeComment = sizeComment;
+	}
 	
 	/**
 	 * Get triplet preference.
@@ -480,8 +654,227 @@ public class Midi2MML {
 		this.noPanCorrection = noPanCorrection;
 	}
 
+	/**
+	 * Get the number of trace records kept for each conversion.
+	 * 
+	 * @return Number of records, 0 if the trace is disabled.
+	 */
+	public int getTraceCapacity() {
+		return traceCapacity;
+	}
+
+	/**
+	 * Set the number of trace records kept for each conversion.
+	 * The trace of a conversion is available from MMLConversion.getTrace(),
+	 * and it is written to stderr when the conversion fails.
+	 * 
+	 * @param traceCapacity
+	 *            Number of records, 0 to disable the trace.
+	 */
+	public void setTraceCapacity(int traceCapacity) {
+		if (traceCapacity < 0) {
+			throw new IllegalArgumentException("Trace capacity must not be negative.");
+		}
+		this.traceCapacity = traceCapacity;
+	}
+
+	/**
+	 * Get the listener of the conversion progress.
+	 * 
+	 * @return Progress listener, null if not used.
+	 */
+	public ConversionProgressListener getProgressListener() {
+		return progressListener;
+	}
+
+	/**
+	 * Set the listener of the conversion progress.
+	 * The listener is called by every conversion done with this converter.
+	 * 
+	 * @param progressListener
+	 *            Progress listener, null to disable progress reports.
+	 */
+	public void setProgressListener(ConversionProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Get the maximum estimated size of the compiled MML.
+	 * 
+	 * @return Size in bytes, MAX_SIZE_UNLIMITED if not limited.
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Set the maximum estimated size of the compiled MML.
+	 * When it is limited, convert() tries coarser quantize precision, dot count, timebase,
+	 * triplet and tick settings and returns the most faithful result which fits.
+	 * 
+	 * @param maxSize
+	 *            Size in bytes, MAX_SIZE_UNLIMITED for no limit.
+	 */
+	public void setMaxSize(long maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("Maximum size must not be negative.");
+		}
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the maximum value error of thinned volume, pan and expression curves.
+	 * 
+	 * @return Maximum error, CC_THINNING_DISABLED if all control changes are kept.
+	 */
+	public int getCcThinningError() {
+		return ccThinningError;
+	}
+
+	/**
+	 * Set the maximum value error of thinned volume, pan and expression curves.
+	 * Dense curves exported by a DAW produce a volume or pan command for each control change,
+	 * thinning them makes the MML smaller and the conversion faster.
+	 * 
+	 * @param ccThinningError
+	 *            Maximum error, 0 to drop repeated values only, CC_THINNING_DISABLED to keep all control changes.
+	 */
+	public void setCcThinningError(int ccThinningError) {
+		if (ccThinningError < CC_THINNING_DISABLED) {
+			throw new IllegalArgumentException("Control change thinning error must not be negative.");
+		}
+		this.ccThinningError = ccThinningError;
+	}
+
+	/**
+	 * Get the minimum interval of thinned control changes of a controller.
+	 * 
+	 * @return Interval in MML ticks. (48 ticks per quarter note)
+	 */
+	public int getCcThinningInterval() {
+		return ccThinningInterval;
+	}
+
+	/**
+	 * Set the minimum interval of thinned control changes of a controller.
+	 * It is used only when the thinning is enabled by setCcThinningError().
+	 * 
+	 * @param ccThinningInterval
+	 *            Interval in MML ticks. (48 ticks per quarter note)
+	 */
+	public void setCcThinningInterval(int ccThinningInterval) {
+		if (ccThinningInterval < 0) {
+			throw new IllegalArgumentException("Control change thinning interval must not be negative.");
+		}
+		this.ccThinningInterval = ccThinningInterval;
+	}
+
+	/**
+	 * Get the maximum difference of N-SPC tempo merged into a tempo ramp.
+	 * 
+	 * @return Tolerance of N-SPC tempo.
+	 */
+	public int getTempoTolerance() {
+		return tempoTolerance;
+	}
+
+	/**
+	 * Set the maximum difference of N-SPC tempo merged into a tempo ramp.
+	 * Tempo events are always written into a single track, without the ones which do not change the N-SPC tempo.
+	 * A tempo which holds for a quarter note or longer is always written exactly.
+	 * 
+	 * @param tempoTolerance
+	 *            Tolerance of N-SPC tempo, 0 to drop repeated tempo only.
+	 */
+	public void setTempoTolerance(int tempoTolerance) {
+		if (tempoTolerance < 0) {
+			throw new IllegalArgumentException("Tempo tolerance must not be negative.");
+		}
+		this.tempoTolerance = tempoTolerance;
+	}
+
+	/**
+	 * Get the number of threads which convert the tracks.
+	 * 
+	 * @return Number of threads.
+	 */
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Set the number of threads which convert the tracks.
+	 * With more than one thread, the tracks are converted in parallel, and a long track is split
+	 * at measures into segments which start from a predicted state. A segment is converted again
+	 * when the prediction is wrong, so the MML is always same as the one converted by a single thread.
+	 * The conversion trace disables it.
+	 * 
+	 * @param threadCount
+	 *            Number of threads, DEFAULT_THREAD_COUNT to convert the tracks in the calling thread.
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be positive.");
+		}
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Get the first measure to be converted.
+	 * 
+	 * @return Measure number, starts from 1, MEASURE_RANGE_ALL if all measures are converted.
+	 */
+	public int getFirstMeasure() {
+		return firstMeasure;
+	}
+
+	/**
+	 * Get the last measure to be converted.
+	 * 
+	 * @return Measure number, starts from 1, MEASURE_RANGE_ALL if all measures are converted.
+	 */
+	public int getLastMeasure() {
+		return lastMeasure;
+	}
+
+	/**
+	 * Set the range of measures to be converted.
+	 * Only the events of the range are converted, and the tempo, time signature, instrument, volume and pan
+	 * at its start are restored. The passes before the cut, which are the parse, the channel separation,
+	 * the time signature scan and the restoration of the state, still read the whole sequence,
+	 * so the cost stays linear in the length of the file; the later passes process only the range.
+	 * The conversion fails if the range starts after the end of the sequence.
+	 * 
+	 * @param firstMeasure
+	 *            First measure, starts from 1, MEASURE_RANGE_ALL to convert all measures.
+	 * @param lastMeasure
+	 *            Last measure, which is converted too, MEASURE_RANGE_ALL to convert all measures.
+	 */
+	public void setMeasureRange(int firstMeasure, int lastMeasure) {
+		if ((firstMeasure == MEASURE_RANGE_ALL) != (lastMeasure == MEASURE_RANGE_ALL)) {
+			throw new IllegalArgumentException("Both ends of the measure range must be given.");
+		}
+		if (firstMeasure < 0 || lastMeasure < firstMeasure) {
+			throw new IllegalArgumentException("Illegal measure range.");
+		}
+		this.firstMeasure = firstMeasure;
+		this.lastMeasure = lastMeasure;
+	}
+
+	/**
+	 * Set the note converters shared by the conversions of a size search.
+	 * 
+	 * @param noteConverterCache
+	 *            Thread-safe map of note converters, null to create one for each conversion.
+	 */
+	void setNoteConverterCache(Map<String, MMLNoteConverter> noteConverterCache) {
+		this.noteConverterCache = noteConverterCache;
+	}
+
 	/**
 	 * Write MML of given sequence.
+	 * Macros used by the MML can be written by writeMacros() after this call.
+	 * Unlike convert(), this method is not thread-safe.
 	 * 
 	 * @param seq
 	 *            Sequence to be converted.
@@ -495,180 +888,837 @@ public class Midi2MML {
 	 *             throws if unexpected MIDI event is appeared.
 	 */
 	public void writeMML(Sequence seq, StringBuilder writer) throws IOException, InvalidMidiDataException {
+		MMLConversion conversion = new MMLConversion(this, null);
+		convertSequence(seq, conversion);
+		writer.append(conversion.getMML());
+		lastConversion = conversion;
+	}
+
+	/**
+	 * Convert given standard MIDI file to MML.
+	 * 
+	 * @param data
+	 *            Content of the standard MIDI file.
+	 * @return Conversion result which contains the final MML text.
+	 * @throws IOException
+	 *             throws if I/O error is happened.
+	 * @throws InvalidMidiDataException
+	 *             throws if the data is not a valid MIDI file.
+	 * @see #convert(Sequence)
+	 */
+	public MMLConversion convert(byte[] data) throws IOException, InvalidMidiDataException {
+		return convert(data, null);
+	}
+
+	/**
+	 * Convert given standard MIDI file to MML, which can be stopped by a token.
+	 * 
+	 * @param data
+	 *            Content of the standard MIDI file.
+	 * @param token
+	 *            Token to stop the conversion, null if the conversion cannot be cancelled.
+	 * @return Conversion result which contains the final MML text.
+	 * @throws IOException
+	 *             throws if I/O error is happened.
+	 * @throws InvalidMidiDataException
+	 *             throws if the data is not a valid MIDI file.
+	 * @throws ConversionCancelledException
+	 *             throws if the token is cancelled or its deadline has passed.
+	 * @see #convert(Sequence, CancellationToken)
+	 */
+	public MMLConversion convert(byte[] data, CancellationToken token) throws IOException, InvalidMidiDataException {
+		return convert(new ByteArrayInputStream(data), token);
+	}
+
+	/**
+	 * Convert given standard MIDI file to MML.
+	 * The remaining bytes of the buffer are read, its position is not changed.
+	 * 
+	 * @param buffer
+	 *            Content of the standard MIDI file.
+	 * @return Conversion result which contains the final MML text.
+	 * @throws IOException
+	 *             throws if I/O error is happened.
+	 * @throws InvalidMidiDataException
+	 *             throws if the data is not a valid MIDI file.
+	 * @see #convert(Sequence)
+	 */
+	public MMLConversion convert(ByteBuffer buffer) throws IOException, InvalidMidiDataException {
+		return convert(buffer, null);
+	}
+
+	/**
+	 * Convert given standard MIDI file to MML, which can be stopped by a token.
+	 * The remaining bytes of the buffer are read, its position is not changed.
+	 * 
+	 * @param buffer
+	 *            Content of the standard MIDI file.
+	 * @param token
+	 *            Token to stop the conversion, null if the conversion cannot be cancelled.
+	 * @return Conversion result which contains the final MML text.
+	 * @throws IOException
+	 *             throws if I/O error is happened.
+	 * @throws InvalidMidiDataException
+	 *             throws if the data is not a valid MIDI file.
+	 * @throws ConversionCancelledException
+	 *             throws if the token is cancelled or its deadline has passed.
+	 * @see #convert(Sequence, CancellationToken)
+	 */
+	public MMLConversion convert(ByteBuffer buffer, CancellationToken token)
+			throws IOException, InvalidMidiDataException {
+		if (buffer.hasArray()) {
+			return convert(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					buffer.remaining()), token);
+		}
+		byte[] data = new byte[buffer.remaining()];
+		buffer.duplicate().get(data);
+		return convert(data, token);
+	}
+
+	/**
+	 * Convert given standard MIDI file to MML.
+	 * 
+	 * @param in
+	 *            Stream of the standard MIDI file, it will not be closed.
+	 * @return Conversion result which contains the final MML text.
+	 * @throws IOException
+	 *             throws if I/O error is happened.
+	 * @throws InvalidMidiDataException
+	 *             throws if the data is not a valid MIDI file.
+	 * @see #convert(Sequence)
+	 */
+	public MMLConversion convert(InputStream in) throws IOException, InvalidMidiDataException {
+		return convert(in, null);
+	}
+
+	/**
+	 * Convert given standard MIDI file to MML, which can be stopped by a token.
+	 * 
+	 * @param in
+	 *            Stream of the standard MIDI file, it will not be closed.
+	 * @param token
+	 *            Token to stop the conversion, null if the conversion cannot be cancelled.
+	 * @return Conversion result which contains the final MML text.
+	 * @throws IOException
+	 *             throws if I/O error is happened.
+	 * @throws InvalidMidiDataException
+	 *             throws if the data is not a valid MIDI file.
+	 * @throws ConversionCancelledException
+	 *             throws if the token is cancelled or its deadline has passed.
+	 * @see #convert(Sequence, CancellationToken)
+	 */
+	public MMLConversion convert(InputStream in, CancellationToken token) throws IOException, InvalidMidiDataException {
+		if (maxSize != MAX_SIZE_UNLIMITED) {
+			// parse once, and let all candidates of the search share the sequence
+			long startTime = System.nanoTime();
+			Sequence seq = MidiSystem.getSequence(in.markSupported() ? in : new BufferedInputStream(in));
+			long parseTime = System.nanoTime() - startTime;
+			MMLConversion conversion = new MMLSizeSearch(this).search(seq, token);
+			conversion.getStats().addPhaseTime(ConversionStats.PHASE_PARSE, parseTime);
+			return conversion;
+		}
+
+		ConversionEvent event = new ConversionEvent();
+		event.begin();
+		MMLConversion conversion = new MMLConversion(this, token);
+
+		// MidiSystem requires mark/reset support to detect the file type
+		long startTime = conversion.getStats().startPhase();
+		Sequence seq = MidiSystem.getSequence(in.markSupported() ? in : new BufferedInputStream(in));
+		conversion.endPhase(ConversionStats.PHASE_PARSE, startTime);
+
+		convertSequence(seq, conversion);
+		conversion.postProcess();
+		commitConversionEvent(event, seq, conversion);
+		return conversion;
+	}
+
+	/**
+	 * Convert given sequence to MML.
+	 * The converter itself is never modified by the conversion, so that a
+	 * configured converter can be shared by many threads.
+	 * 
+	 * @param seq
+	 *            Sequence to be converted.
+	 * @return Conversion result which contains the final MML text.
+	 * @throws IOException
+	 *             throws if I/O error is happened.
+	 * @throws UnsupportedOperationException
+	 *             throws if the situation is not supported.
+	 * @throws InvalidMidiDataException
+	 *             throws if unexpected MIDI event is appeared.
+	 */
+	public MMLConversion convert(Sequence seq) throws IOException, InvalidMidiDataException {
+		return convert(seq, null);
+	}
+
+	/**
+	 * Convert given sequence to MML, which can be stopped by a token.
+	 * The token is checked periodically during the conversion, and the conversion
+	 * throws ConversionCancelledException with the statistics so far when it must stop.
+	 * 
+	 * @param seq
+	 *            Sequence to be converted.
+	 * @param token
+	 *            Token to stop the conversion, null if the conversion cannot be cancelled.
+	 * @return Conversion result which contains the final MML text.
+	 * @throws IOException
+	 *             throws if I/O error is happened.
+	 * @throws UnsupportedOperationException
+	 *             throws if the situation is not supported.
+	 * @throws InvalidMidiDataException
+	 *             throws if unexpected MIDI event is appeared.
+	 * @throws ConversionCancelledException
+	 *             throws if the token is cancelled or its deadline has passed.
+	 */
+	public MMLConversion convert(Sequence seq, CancellationToken token) throws IOException, InvalidMidiDataException {
+		if (maxSize != MAX_SIZE_UNLIMITED) {
+			return new MMLSizeSearch(this).search(seq, token);
+		}
+
+		ConversionEvent event = new ConversionEvent();
+		event.begin();
+		MMLConversion conversion = new MMLConversion(this, token);
+		convertSequence(seq, conversion);
+		conversion.postProcess();
+		commitConversionEvent(event, seq, conversion);
+		return conversion;
+	}
+
+	/**
+	 * Commit a Flight Recorder event of a finished conversion, if it is enabled.
+	 * 
+	 * @param event
+	 *            Event which has begun at the start of the conversion.
+	 * @param seq
+	 *            Sequence which has been converted.
+	 * @param conversion
+	 *            Result of the conversion.
+	 */
+	private static void commitConversionEvent(ConversionEvent event, Sequence seq, MMLConversion conversion) {
+		event.end();
+		if (event.shouldCommit()) {
+			ConversionStats stats = conversion.getStats();
+			event.trackCount = seq.getTracks().length;
+			event.midiEvents = stats.getMidiEventCount();
+			event.notes = stats.getNoteCount();
+			event.mmlEvents = stats.getMMLEventCount();
+			event.macros = stats.getMacroCount();
+			event.outputBytes = stats.getOutputBytes();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Convert given sequence to MML, without post-processing.
+	 * 
+	 * @param seq
+	 *            Sequence to be converted.
+	 * @param conversion
+	 *            Destination of the conversion result.
+	 * @throws IOException
+	 *             throws if I/O error is happened.
+	 * @throws UnsupportedOperationException
+	 *             throws if the situation is not supported.
+	 * @throws InvalidMidiDataException
+	 *             throws if unexpected MIDI event is appeared.
+	 */
+	private void convertSequence(Sequence seq, MMLConversion conversion) throws IOException, InvalidMidiDataException {
+		try {
+			writeTracks(seq, conversion);
+		} catch (IOException | InvalidMidiDataException | RuntimeException e) {
+			if (e instanceof ConversionCancelledException && ((ConversionCancelledException) e).getStats() == null) {
+				((ConversionCancelledException) e).setStats(conversion.getStats());
+			}
+			ConversionTrace trace = conversion.getTrace();
+			if (trace != null) {
+				StringBuilder sb = new StringBuilder();
+				trace.dump(sb);
+				System.err.print(sb);
+			}
+			throw e;
+		}
+	}
+
+	private void writeTracks(Sequence seq, MMLConversion conversion) throws IOException, InvalidMidiDataException {
+		ConversionStats stats = conversion.getStats();
+		long startTime = stats.startPhase();
+		StringBuilder writer = conversion.getMML();
+
 		// sequence must be tick-based
 		if (seq.getDivisionType() != Sequence.PPQ) {
 			throw new UnsupportedOperationException("SMPTE is not supported.");
 		}
 
 		// preprocess
-		if (inputResolution != RESOLUTION_AS_IS)
+		if (inputResolution != RESOLUTION_AS_IS) {
 			seq = MidiUtil.assumeResolution(seq, inputResolution, true);
+			startTime = conversion.endPhase(ConversionStats.PHASE_ASSUME_RESOLUTION, startTime);
+		}
 		
 		// the converter assumes that all events in a track are for a single channel,
 		// when the input file is SMF format 0 or something like that, it requires preprocessing.
-		seq = MidiUtil.separateMixedChannel(seq);
+		// messages which are never converted are dropped here, before the other passes copy them.
+		seq = MidiUtil.separateMixedChannel(seq, this::isConvertedMessage);
+		startTime = conversion.endPhase(ConversionStats.PHASE_SEPARATE_MIXED_CHANNEL, startTime);
+
+		// cut the measure range before the other passes,
+		// tracks are split by channel first so that they are numbered same as the whole sequence.
+		if (firstMeasure != MEASURE_RANGE_ALL) {
+			List<MidiTimeSignature> timeSignatures;
+			try {
+				timeSignatures = getMidiTimeSignatures(seq, conversion.getToken());
+			} catch (InvalidMidiDataException e) {
+				// the warning is shown by the scan of the range
+				timeSignatures = new ArrayList<>();
+				timeSignatures.add(new MidiTimeSignature(4, 2));
+			}
+			long startTick = MidiTimeSignature.getTickByMeasure(firstMeasure - 1, timeSignatures, seq.getResolution());
+			long endTick = MidiTimeSignature.getTickByMeasure(lastMeasure, timeSignatures, seq.getResolution());
+			long sequenceEndTick = 0;
+			for (Track track : seq.getTracks()) {
+				sequenceEndTick = Math.max(sequenceEndTick, track.get(track.size() - 1).getTick());
+			}
+			if (startTick >= sequenceEndTick) {
+				int measureCount = (sequenceEndTick == 0) ? 0
+						: MidiTimeSignature.getMeasureByTick(sequenceEndTick - 1, timeSignatures, seq.getResolution()) + 1;
+				throw new IllegalArgumentException(String.format(
+						"Measure range %d:%d starts after the end of the song (%d measures).", firstMeasure, lastMeasure,
+						measureCount));
+			}
+			seq = MidiUtil.extractRange(seq, startTick, endTick);
+			startTime = conversion.endPhase(ConversionStats.PHASE_EXTRACT_RANGE, startTime);
+		}
 		
 		// adjust resolution for MML conversion
-		if (targetResolution != RESOLUTION_AS_IS)
+		if (targetResolution != RESOLUTION_AS_IS) {
 			seq = MidiUtil.changeResolution(seq, targetResolution);
+			startTime = conversion.endPhase(ConversionStats.PHASE_CHANGE_RESOLUTION, startTime);
+		}
+
+		// thin dense volume, pan and expression curves
+		if (ccThinningError != CC_THINNING_DISABLED) {
+			long sourceEventCount = getEventCount(seq);
+			long minInterval = (long) ccThinningInterval * seq.getResolution() / MML_TPQN;
+			seq = MidiUtil.thinControlChanges(seq, ccThinningError, minInterval);
+			stats.setDroppedControlChangeCount(sourceEventCount - getEventCount(seq));
+			startTime = conversion.endPhase(ConversionStats.PHASE_THIN_CONTROL_CHANGES, startTime);
+		}
+
+		// N-SPC tempo is global, write each change once
+		MidiTempoMap tempoMap = new MidiTempoMap(seq, tempoTolerance);
+		seq = tempoMap.getSequence();
+		conversion.setTempoMap(tempoMap);
+		stats.setDroppedTempoChangeCount(tempoMap.getDroppedCount());
+		startTime = conversion.endPhase(ConversionStats.PHASE_BUILD_TEMPO_MAP, startTime);
 
 		// get track count (this must be after the preprocess)
 		int trackCount = seq.getTracks().length;
 
 		// scan end timing for each tracks
 		long[] midiTracksEndTick = new long[trackCount];
+		long midiEventCount = 0;
 		for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
 			Track track = seq.getTracks()[trackIndex];
 			midiTracksEndTick[trackIndex] = track.get(track.size() - 1).getTick();
+			midiEventCount += track.size();
 		}
+		stats.setMidiEventCount(midiEventCount);
 
 		// scan MIDI notes
-		List<List<MidiNote>> midiTrackNotes = getMidiNotes(seq);
+		List<List<MidiNote>> midiTrackNotes = getMidiNotes(seq, conversion.getToken());
+		long noteCount = 0;
+		for (List<MidiNote> midiNotes : midiTrackNotes) {
+			noteCount += midiNotes.size();
+		}
+		stats.setNoteCount(noteCount);
+		startTime = conversion.endPhase(ConversionStats.PHASE_GET_MIDI_NOTES, startTime);
 
 		// scan time signatures
 		List<MidiTimeSignature> timeSignatures;
 		try {
-			timeSignatures = getMidiTimeSignatures(seq);
+			timeSignatures = getMidiTimeSignatures(seq, conversion.getToken());
 		} catch (InvalidMidiDataException e) {
 			System.err.println("Warning: " + e.getMessage());
 			timeSignatures = new ArrayList<>();
 			timeSignatures.add(new MidiTimeSignature(4, 2));
 		}
+		startTime = conversion.endPhase(ConversionStats.PHASE_GET_MIDI_TIME_SIGNATURES, startTime);
+
+		ConversionTrace trace = conversion.getTrace();
+		if (trace != null) {
+			trace.setTimeBase(timeSignatures, seq.getResolution());
+		}
 
-		if (DEBUG_DUMP) {
-			for (MidiTimeSignature timeSignature : timeSignatures) {
-				System.out.println(timeSignature);
+		fixEvents(seq, conversion.getToken());
+		startTime = conversion.endPhase(ConversionStats.PHASE_FIX_EVENTS, startTime);
+
+		// reset subsystems
+		MMLNoteConverter noteConv = getNoteConverter(seq.getResolution(), conversion.getToken());
+		TrackContext context = new TrackContext(conversion, seq, midiTrackNotes, midiTracksEndTick, timeSignatures,
+				noteConv);
+
+		// convert tracks one by one, or in parallel.
+		// tracks do not share any state, except for the macros which are defined in order of the first use,
+		// so the macros used by the tracks are registered afterward, in order of tick and track.
+		Midi2MMLTrack[] mmlTracks = (threadCount > 1 && trace == null)
+				? convertTracksInParallel(context)
+				: convertTracks(context);
+		List<MMLMacroUse> macroUses = new ArrayList<>();
+		for (Midi2MMLTrack mmlTrack : mmlTracks) {
+			macroUses.addAll(mmlTrack.getMacroUses());
+		}
+		// stable sort keeps the order of tracks, and the order in a track, for the same tick
+		macroUses.sort(Comparator.comparingLong(MMLMacroUse::getTick));
+		for (MMLMacroUse macroUse : macroUses) {
+			macroUse.register(conversion);
+		}
+		conversion.reportTick(context.totalTicks, context.totalTicks);
+		startTime = conversion.endPhase(ConversionStats.PHASE_TICK_LOOP, startTime);
+
+		boolean firstTrackWrite = true;
+		long mmlEventCount = 0;
+
+		// collect the commands of all tracks to find phrases shared by them
+		List<List<String>> trackCommands = null;
+		if (useLabelLoops) {
+			trackCommands = new ArrayList<>(mmlTracks.length);
+			for (Midi2MMLTrack mmlTrack : mmlTracks) {
+				trackCommands.add(mmlTrack.getCommands());
 			}
+			MMLSizeEstimator sizeEstimator = new MMLSizeEstimator(mmlSymbol, conversion.writeMacros().toString());
+			MMLPhraseDictionary phraseDictionary = new MMLPhraseDictionary(mmlSymbol, octaveReversed, sizeEstimator);
+			phraseDictionary.apply(trackCommands);
+			stats.setPhraseCount(phraseDictionary.getPhraseCount());
+			stats.setPhraseSavedBytes(phraseDictionary.getSavedBytes());
 		}
 
-		// reset track parameters
-		Midi2MMLTrack[] mmlTracks = new Midi2MMLTrack[trackCount];
-		
-		for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
-			mmlTracks[trackIndex] = new Midi2MMLTrack(mmlSymbol);
-			mmlTracks[trackIndex].setUseTriplet(useTriplet);
+		for (int i = 0; i < mmlTracks.length; i++) {
+			conversion.checkCancelled();
+			if (!mmlTracks[i].isEmpty()) {
+				if (firstTrackWrite) firstTrackWrite = false;
+
+				writer.append(LINE_SEPARATOR);
+				writer.append("#" + i);
+				writer.append(LINE_SEPARATOR);
+
+				TrackRenderEvent renderEvent = new TrackRenderEvent();
+				renderEvent.begin();
+				mmlEventCount += mmlTracks[i].size();
+				if (trackCommands != null) {
+					mmlTracks[i].writeCommands(trackCommands.get(i), writer);
+				} else {
+					mmlTracks[i].writeMML(writer);
+				}
+				conversion.addTrack(i);
+				renderEvent.end();
+				if (renderEvent.shouldCommit()) {
+					renderEvent.trackIndex = i;
+					renderEvent.endTick = mmlTracks[i].getTick();
+					renderEvent.mmlEvents = mmlTracks[i].size();
+					renderEvent.commit();
+				}
+			}
 		}
-		// reset subsystems
-		MMLNoteConverter noteConv = new MMLNoteConverter(mmlSymbol, seq.getResolution(), maxDots, useTicks);
-
-		fixEvents(seq);
-
-		// convert tracks at the same time
-		// reading tracks one by one would be simpler than the tick-based loop,
-		// but it would limit handling a global event such as time signature.
-		long tick = 0;
-		boolean mmlFinished = false;
-		while (!mmlFinished) {
-			for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
-				Midi2MMLTrack mmlTrack = mmlTracks[trackIndex];
-				Track track = seq.getTracks()[trackIndex];
-				List<MidiNote> midiNotes = midiTrackNotes.get(trackIndex);
-
-				while (!mmlTrack.isFinished()) {
-					// stop conversion when all events are dispatched
-					if (mmlTrack.getMidiEventIndex() >= track.size()) {
-						mmlTrack.setFinished(true);
-						break;
-					}
+		conversion.endPhase(ConversionStats.PHASE_RENDER_TRACKS, startTime);
 
-					// get next MIDI message
-					MidiEvent event = track.get(mmlTrack.getMidiEventIndex());
-					if (event.getTick() != tick) {
-						break;
-					}
-					mmlTrack.setMidiEventIndex(mmlTrack.getMidiEventIndex() + 1);
+		stats.setMMLEventCount(mmlEventCount);
+	}
+	
+	/**
+	 * Data shared by the conversions of the tracks, which are not modified by them.
+	 */
+	private static class TrackContext {
+		private final MMLConversion conversion;
+		private final Sequence seq;
+		private final List<List<MidiNote>> midiTrackNotes;
+		private final long[] midiTracksEndTick;
+		private final List<MidiTimeSignature> timeSignatures;
+		private final MMLNoteConverter noteConv;
+
+		/**
+		 * Token of the track conversions, cancelled when the parallel conversion ends.
+		 */
+		private final CancellationToken token;
+
+		/**
+		 * Sum of the last tick of each track.
+		 */
+		private final long totalTicks;
+
+		/**
+		 * Ticks of the tracks converted before, for the progress of the conversion in the calling thread.
+		 */
+		private long convertedTicks = 0;
+
+		private TrackContext(MMLConversion conversion, Sequence seq, List<List<MidiNote>> midiTrackNotes,
+				long[] midiTracksEndTick, List<MidiTimeSignature> timeSignatures, MMLNoteConverter noteConv) {
+			this.conversion = conversion;
+			this.seq = seq;
+			this.midiTrackNotes = midiTrackNotes;
+			this.midiTracksEndTick = midiTracksEndTick;
+			this.timeSignatures = timeSignatures;
+			this.noteConv = noteConv;
+			this.token = new CancellationToken(conversion.getToken());
+			long totalTicks = 0;
+			for (long endTick : midiTracksEndTick) {
+				totalTicks += endTick;
+			}
+			this.totalTicks = totalTicks;
+		}
+	}
 
-					// dump for debug
-					if (DEBUG_DUMP) {
-						System.out.format("MidiEvent: track=%d,tick=%d<%s>,message=%s%n", trackIndex, event.getTick(),
-										MidiTimeSignature.getMeasureTickString(event.getTick(), timeSignatures, seq.getResolution()),
-										byteArrayToString(event.getMessage().getMessage()));
-					}
+	/**
+	 * Range of MIDI events of a track converted by a thread.
+	 */
+	private static class TrackSegment {
+		private final int trackIndex;
+		private final int startEventIndex;
+		private final int endEventIndex;
+
+		/**
+		 * Predicted state at the start, null for the first segment of a track.
+		 */
+		private Midi2MMLTrack startState;
+
+		/**
+		 * Converted segment, which continues the predicted state.
+		 */
+		private Future<Midi2MMLTrack> result;
+
+		private TrackSegment(int trackIndex, int startEventIndex, int endEventIndex) {
+			this.trackIndex = trackIndex;
+			this.startEventIndex = startEventIndex;
+			this.endEventIndex = endEventIndex;
+		}
+	}
 
-					// branch by event type for more detailed access
-					List<MMLEvent> mmlEvents = new ArrayList<>();
-					long mmlLastTick = mmlTrack.getTick();
-					int mmlLastNoteNumber = mmlTrack.getNoteNumber();
-
-					if (event.getMessage() instanceof ShortMessage) {
-						ShortMessage message = (ShortMessage) event.getMessage();
-
-						if (message.getCommand() == ShortMessage.NOTE_OFF
-								|| (message.getCommand() == ShortMessage.NOTE_ON && message.getData2() == 0)) {
-							handleNoteOffMessage(noteConv, mmlTrack, message, midiNotes, timeSignatures,
-									midiTracksEndTick, seq, mmlLastTick, tick, trackIndex);
-						} else if (message.getCommand() == ShortMessage.NOTE_ON) {
-							handleNoteOnMessage(track, mmlTrack, mmlEvents, message, tick);
-						} else {
-							handleOtherMessages(mmlTrack, mmlEvents, event, mmlLastTick, tick);
-						}
-					} else {
-						handleOtherMessages(mmlTrack, mmlEvents, event, mmlLastTick, tick);
-					}
+	/**
+	 * Convert all tracks in the calling thread.
+	 */
+	private Midi2MMLTrack[] convertTracks(TrackContext context) throws InvalidMidiDataException {
+		Track[] tracks = context.seq.getTracks();
+		Midi2MMLTrack[] mmlTracks = new Midi2MMLTrack[tracks.length];
+		MMLQuantizer quantizer = newQuantizer(context);
+		for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
+			mmlTracks[trackIndex] = newTrack();
+			convertEvents(context, trackIndex, mmlTracks[trackIndex], tracks[trackIndex].size(), quantizer, true);
+			context.convertedTicks += context.midiTracksEndTick[trackIndex];
+			context.conversion.reportTrackFinished(trackIndex, tracks.length);
+		}
+		return mmlTracks;
+	}
 
-					// final event, seek to the last whether the last event has been dispatched.
-					if (mmlTrack.getMidiEventIndex() == track.size() && !mmlTrack.isEmpty()
-							&& mmlTrack.getTick() < tick) {
-						mmlTrack.setTick(tick);
-					}
+	/**
+	 * Convert the tracks in parallel, a long track is split at measures into segments.
+	 * A segment starts from the state predicted by converting some events before it,
+	 * and it is converted again from the actual state if the prediction is wrong.
+	 */
+	private Midi2MMLTrack[] convertTracksInParallel(TrackContext context)
+			throws IOException, InvalidMidiDataException {
+		Track[] tracks = context.seq.getTracks();
+		List<List<TrackSegment>> trackSegments = new ArrayList<>(tracks.length);
+		for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
+			trackSegments.add(getTrackSegments(context, trackIndex));
+		}
 
-					// timing changed, write the last note/rest and finish the seek
-					if (mmlTrack.getTick() != mmlLastTick) {
-						if (DEBUG_DUMP) {
-							System.out.format("Timing: track=%d,%d<%s> -> %d<%s>%n", trackIndex, mmlLastTick,
-									MidiTimeSignature.getMeasureTickString(mmlLastTick, timeSignatures,
-											seq.getResolution()),
-									mmlTrack.getTick(), MidiTimeSignature.getMeasureTickString(mmlTrack.getTick(),
-											timeSignatures, seq.getResolution()));
-						}
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			for (List<TrackSegment> segments : trackSegments) {
+				for (TrackSegment segment : segments) {
+					Callable<Midi2MMLTrack> task = () -> convertSegment(context, segment);
+					segment.result = executor.submit(task);
+				}
+			}
 
-						if (mmlLastNoteNumber == MMLNoteConverter.KEY_REST) {
-							handleRest(noteConv, mmlTrack, mmlLastTick, mmlLastNoteNumber, seq, timeSignatures);
-						} else {
-							handleNote(noteConv, mmlTrack, mmlLastTick, mmlLastNoteNumber, seq, timeSignatures, tick);
+			Midi2MMLTrack[] mmlTracks = new Midi2MMLTrack[tracks.length];
+			MMLQuantizer quantizer = null;
+			for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
+				Midi2MMLTrack mmlTrack = null;
+				for (TrackSegment segment : trackSegments.get(trackIndex)) {
+					Midi2MMLTrack segmentTrack = getTaskResult(segment.result, context.token);
+					if (mmlTrack == null) {
+						mmlTrack = segmentTrack;
+					} else if (mmlTrack.hasSameState(segment.startState)) {
+						mmlTrack.append(segmentTrack);
+					} else {
+						// the prediction is wrong, convert the segment again
+						if (quantizer == null) {
+							quantizer = newQuantizer(context);
 						}
+						convertEvents(context, trackIndex, mmlTrack, segment.endEventIndex, quantizer, false);
 					}
+					context.conversion.reportTick(context.convertedTicks
+							+ tracks[trackIndex].get(segment.endEventIndex - 1).getTick(), context.totalTicks);
+				}
+				mmlTracks[trackIndex] = mmlTrack;
+				context.convertedTicks += context.midiTracksEndTick[trackIndex];
+				context.conversion.reportTrackFinished(trackIndex, tracks.length);
+			}
+			return mmlTracks;
+		} finally {
+			// stop the segments left running
+			context.token.cancel();
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Split a track into segments for the threads, each segment starts from the first event of a measure.
+	 */
+	private List<TrackSegment> getTrackSegments(TrackContext context, int trackIndex) {
+		Track track = context.seq.getTracks()[trackIndex];
+		int resolution = context.seq.getResolution();
+		int segmentCount = Math.max(Math.min(threadCount, track.size() / MIN_SEGMENT_EVENTS), 1);
+		List<TrackSegment> segments = new ArrayList<>(segmentCount);
+		int startEventIndex = 0;
+		for (int segmentIndex = 1; segmentIndex < segmentCount; segmentIndex++) {
+			int eventIndex = Math.max((int) ((long) track.size() * segmentIndex / segmentCount), startEventIndex + 1);
+			for (; eventIndex < track.size(); eventIndex++) {
+				int lastMeasure = MidiTimeSignature.getMeasureByTick(track.get(eventIndex - 1).getTick(),
+						context.timeSignatures, resolution);
+				int measure = MidiTimeSignature.getMeasureByTick(track.get(eventIndex).getTick(),
+						context.timeSignatures, resolution);
+				if (measure != lastMeasure) {
+					break;
+				}
+			}
+			if (eventIndex >= track.size()) {
+				break;
+			}
+			segments.add(new TrackSegment(trackIndex, startEventIndex, eventIndex));
+			startEventIndex = eventIndex;
+		}
+		segments.add(new TrackSegment(trackIndex, startEventIndex, track.size()));
+		return segments;
+	}
+
+	/**
+	 * Convert a segment of a track from its predicted state.
+	 */
+	private Midi2MMLTrack convertSegment(TrackContext context, TrackSegment segment) throws InvalidMidiDataException {
+		MMLQuantizer quantizer = newQuantizer(context);
+		Midi2MMLTrack mmlTrack = newTrack();
+		if (segment.startEventIndex != 0) {
+			segment.startState = predictStartState(context, segment, quantizer);
+			mmlTrack = new Midi2MMLTrack(segment.startState);
+		}
+		convertEvents(context, segment.trackIndex, mmlTrack, segment.endEventIndex, quantizer, false);
+		return mmlTrack;
+	}
+
+	/**
+	 * Predict the state at the start of a segment.
+	 * The volume, velocity, expression, pan, octave and note index are scanned from the start of the track,
+	 * and the timing is found by converting the events from a note before the segment.
+	 */
+	private Midi2MMLTrack predictStartState(TrackContext context, TrackSegment segment, MMLQuantizer quantizer)
+			throws InvalidMidiDataException {
+		Track track = context.seq.getTracks()[segment.trackIndex];
+		int warmUpEventIndex = Math.max(segment.startEventIndex - SEGMENT_WARM_UP_EVENTS, 0);
+		while (warmUpEventIndex > 0 && !isNoteOn(track.get(warmUpEventIndex).getMessage())) {
+			warmUpEventIndex--;
+		}
 
-					// event is dispatched,
-					// write the new MML command
-					if (!mmlEvents.isEmpty()) {
-						mmlTrack.addAll(mmlEvents);
+		Midi2MMLTrack mmlTrack = newTrack();
+		if (warmUpEventIndex != 0) {
+			int noteIndex = 0;
+			for (int eventIndex = 0; eventIndex < warmUpEventIndex; eventIndex++) {
+				MidiMessage message = track.get(eventIndex).getMessage();
+				if (isNoteOn(message)) {
+					ShortMessage noteOn = (ShortMessage) message;
+					mmlTrack.setCurrentVelocity(noteOn.getData2());
+					mmlTrack.setOctave(noteOn.getData1() / 12 - 1 + octaveOffset);
+					noteIndex++;
+				} else if (message instanceof ShortMessage
+						&& ((ShortMessage) message).getCommand() == ShortMessage.CONTROL_CHANGE) {
+					ShortMessage controlChange = (ShortMessage) message;
+					if (controlChange.getData1() == MidiUtil.CC_VOLUME) {
+						mmlTrack.setCurrentVolume(controlChange.getData2());
+					} else if (controlChange.getData1() == MidiUtil.CC_PAN) {
+						mmlTrack.setCurrentPan(controlChange.getData2());
+					} else if (controlChange.getData1() == MidiUtil.CC_EXPRESSION && !noExpression) {
+						mmlTrack.setCurrentExpression(controlChange.getData2());
 					}
 				}
 			}
+			if (noteIndex != 0) {
+				mmlTrack.setFirstNote(false);
+				mmlTrack.setNoteIndex(noteIndex);
+				mmlTrack.setCurrentNoteIndex(noteIndex - 1);
+			}
 
-			mmlFinished = true;
-			for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
-				if (!mmlTracks[trackIndex].isFinished()) {
-					mmlFinished = false;
-					break;
+			// assume that the last note has been written until the last event
+			long tick = track.get(warmUpEventIndex - 1).getTick();
+			mmlTrack.setTick(tick);
+			mmlTrack.setMeasure(MidiTimeSignature.getMeasureByTick(tick, context.timeSignatures,
+					context.seq.getResolution()));
+			mmlTrack.setMidiEventIndex(warmUpEventIndex);
+			mmlTrack.setContinued(true);
+		}
+		convertEvents(context, segment.trackIndex, mmlTrack, segment.startEventIndex, quantizer, false);
+		return new Midi2MMLTrack(mmlTrack);
+	}
+
+	/**
+	 * Convert the MIDI events of a track from the current event index of the MML track.
+	 * 
+	 * @param context Data shared by the track conversions.
+	 * @param trackIndex Track number.
+	 * @param mmlTrack MML track to be continued.
+	 * @param endEventIndex Index of the MIDI event to stop at.
+	 * @param quantizer Quantizer used only by the calling thread.
+	 * @param reportProgress true if the progress is reported, only in the calling thread of convert().
+	 * @throws InvalidMidiDataException throws if unexpected MIDI event is appeared.
+	 */
+	private void convertEvents(TrackContext context, int trackIndex, Midi2MMLTrack mmlTrack, int endEventIndex,
+			MMLQuantizer quantizer, boolean reportProgress) throws InvalidMidiDataException {
+		MMLConversion conversion = context.conversion;
+		ConversionTrace trace = conversion.getTrace();
+		MMLNoteConverter noteConv = context.noteConv;
+		Sequence seq = context.seq;
+		Track track = seq.getTracks()[trackIndex];
+		List<MidiNote> midiNotes = context.midiTrackNotes.get(trackIndex);
+
+		while (mmlTrack.getMidiEventIndex() < endEventIndex) {
+			if ((mmlTrack.getMidiEventIndex() & CANCELLATION_CHECK_MASK) == 0) {
+				context.token.check(conversion.getStats());
+				if (reportProgress) {
+					conversion.reportTick(context.convertedTicks + track.get(mmlTrack.getMidiEventIndex()).getTick(),
+							context.totalTicks);
+				}
+			}
+
+			// get next MIDI message
+			MidiEvent event = track.get(mmlTrack.getMidiEventIndex());
+			long tick = event.getTick();
+			mmlTrack.setMidiEventIndex(mmlTrack.getMidiEventIndex() + 1);
+
+			// trace for debug
+			if (trace != null) {
+				traceMidiEvent(trace, trackIndex, event);
+			}
+
+			// branch by event type for more detailed access
+			List<MMLEvent> mmlEvents = new ArrayList<>();
+			long mmlLastTick = mmlTrack.getTick();
+			int mmlLastNoteNumber = mmlTrack.getNoteNumber();
+
+			if (event.getMessage() instanceof ShortMessage) {
+				ShortMessage message = (ShortMessage) event.getMessage();
+
+				if (message.getCommand() == ShortMessage.NOTE_OFF
+						|| (message.getCommand() == ShortMessage.NOTE_ON && message.getData2() == 0)) {
+					handleNoteOffMessage(quantizer, trace, mmlTrack, message, midiNotes, context.midiTracksEndTick,
+							mmlLastTick, tick, trackIndex);
+				} else if (message.getCommand() == ShortMessage.NOTE_ON) {
+					handleNoteOnMessage(track, mmlTrack, mmlEvents, message, tick);
+				} else {
+					handleOtherMessages(conversion, mmlTrack, mmlEvents, event, mmlLastTick, tick);
+				}
+			} else {
+				handleOtherMessages(conversion, mmlTrack, mmlEvents, event, mmlLastTick, tick);
+			}
+
+			// final event, seek to the last whether the last event has been dispatched.
+			if (mmlTrack.getMidiEventIndex() == track.size() && !mmlTrack.isEmpty()
+					&& mmlTrack.getTick() < tick) {
+				mmlTrack.setTick(tick);
+			}
+
+			// timing changed, write the last note/rest and finish the seek
+			if (mmlTrack.getTick() != mmlLastTick) {
+				if (trace != null) {
+					trace.add(ConversionTrace.TYPE_TIMING, trackIndex, mmlLastTick, mmlTrack.getTick(),
+							mmlLastNoteNumber, 0, 0, 0);
+				}
+
+				NoteConversionEvent noteEvent = new NoteConversionEvent();
+				noteEvent.begin();
+				if (mmlLastNoteNumber == MMLNoteConverter.KEY_REST) {
+					handleRest(noteConv, mmlTrack, mmlLastTick, mmlLastNoteNumber, seq, context.timeSignatures);
+				} else {
+					handleNote(noteConv, mmlTrack, mmlLastTick, mmlLastNoteNumber, seq, context.timeSignatures, tick);
+				}
+				noteEvent.end();
+				if (noteEvent.shouldCommit()) {
+					noteEvent.trackIndex = trackIndex;
+					noteEvent.startTick = mmlLastTick;
+					noteEvent.endTick = mmlTrack.getTick();
+					noteEvent.noteNumber = mmlLastNoteNumber;
+					noteEvent.commit();
 				}
 			}
 
-			tick++;
+			// event is dispatched,
+			// write the new MML command
+			if (!mmlEvents.isEmpty()) {
+				mmlTrack.addAll(mmlEvents);
+			}
 		}
 
-		boolean firstTrackWrite = true;
+		// stop conversion when all events are dispatched
+		if (mmlTrack.getMidiEventIndex() >= track.size()) {
+			mmlTrack.setFinished(true);
+		}
+	}
 
-		for (int i = 0; i < mmlTracks.length; i++) {
-			if (!mmlTracks[i].isEmpty()) {
-				if (firstTrackWrite) firstTrackWrite = false;
+	private Midi2MMLTrack newTrack() {
+		Midi2MMLTrack mmlTrack = new Midi2MMLTrack(mmlSymbol);
+		mmlTrack.setUseTriplet(useTriplet);
+		mmlTrack.setUseLoops(useLoops);
+		return mmlTrack;
+	}
 
-				writer.append(LINE_SEPARATOR);
-				writer.append("#" + i);
-				writer.append(LINE_SEPARATOR);
+	private MMLQuantizer newQuantizer(TrackContext context) {
+		return new MMLQuantizer(context.noteConv, maxDots, quantizePrecision, quantizationEnabled,
+				context.conversion.getTrace());
+	}
+
+	private static boolean isNoteOn(MidiMessage message) {
+		return message instanceof ShortMessage && ((ShortMessage) message).getCommand() == ShortMessage.NOTE_ON
+				&& ((ShortMessage) message).getData2() != 0;
+	}
 
-				mmlTracks[i].writeMML(writer);
+	/**
+	 * Wait for a task and rethrow its exception as it is.
+	 * 
+	 * @param future Result of the task.
+	 * @param token Token of the tasks, which is cancelled if the calling thread is interrupted.
+	 * @return Result of the task.
+	 * @throws IOException throws if the task throws it.
+	 * @throws InvalidMidiDataException throws if the task throws it.
+	 */
+	static <T> T getTaskResult(Future<T> future, CancellationToken token) throws IOException, InvalidMidiDataException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			token.cancel();
+			token.check(null);
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof InvalidMidiDataException) {
+				throw (InvalidMidiDataException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
 			}
+			throw new IllegalStateException(cause);
 		}
 	}
-	
+
 	private void handleRest(MMLNoteConverter noteConv, Midi2MMLTrack mmlTrack, long mmlLastTick,
 			int mmlLastNoteNumber, Sequence seq, List<MidiTimeSignature> timeSignatures) {
-		List<Integer> lengths = noteConv
-				.getPrimitiveNoteLengths((int) (mmlTrack.getTick() - mmlLastTick), false);
+		int restLength = (int) (mmlTrack.getTick() - mmlLastTick);
+		int lengthCount = noteConv.getPrimitiveNoteLengthCount(restLength, false);
 		int totalLength = 0;
-		for (int length : lengths) {
+		for (int i = 0; i < lengthCount; i++) {
+			int length = noteConv.getPrimitiveNoteLength(restLength, false, i);
 			totalLength += length;
 			mmlTrack.add(new MMLEvent(noteConv.getNote(length, mmlLastNoteNumber)));
 
@@ -731,9 +1781,9 @@ public class Midi2MML {
 		}
 	}
 	
-	private void handleNoteOffMessage(MMLNoteConverter noteConv, Midi2MMLTrack mmlTrack, ShortMessage message,
-			List<MidiNote> midiNotes, List<MidiTimeSignature> timeSignatures, long[] midiTracksEndTick,
-			Sequence seq, long mmlLastTick, long tick, int trackIndex) {
+	private void handleNoteOffMessage(MMLQuantizer quantizer, ConversionTrace trace, Midi2MMLTrack mmlTrack,
+			ShortMessage message, List<MidiNote> midiNotes, long[] midiTracksEndTick, long mmlLastTick, long tick,
+			int trackIndex) {
 		int nextNoteIndex = mmlTrack.getCurrentNoteIndex() + 1;
 		MidiNote midiNextNote = (nextNoteIndex < midiNotes.size())
 				? midiNotes.get(nextNoteIndex)
@@ -746,22 +1796,11 @@ public class Midi2MML {
 				? midiNextNote.getTime()
 				: midiTracksEndTick[trackIndex]) - mmlLastTick;
 		if (message.getData1() == mmlTrack.getNoteNumber() && minLength != 0) {
-			if (DEBUG_DUMP) {
-				System.out.format(
-						"Note Off: track=%d,tick=%d<%s>,mmlLastTick=%d<%s>",
-						trackIndex, tick,
-						MidiTimeSignature.getMeasureTickString(tick, timeSignatures,
-								seq.getResolution()),
-						mmlLastTick,
-						MidiTimeSignature.getMeasureTickString(mmlLastTick, timeSignatures,
-								seq.getResolution()));
-			}
+			long length = quantizer.quantize(minLength, maxLength);
 			
-			long length = quantize(seq, noteConv, minLength, maxLength);
-			
-			if(DEBUG_DUMP) {
-				System.out.format(",next=%s%n",
-						(midiNextNote != null) ? midiNextNote.toString() : "null");
+			if (trace != null) {
+				trace.add(ConversionTrace.TYPE_NOTE_OFF, trackIndex, tick, mmlLastTick, minLength, maxLength, length,
+						(midiNextNote != null) ? midiNextNote.getTime() : -1);
 			}
 
 			mmlTrack.setTick(mmlLastTick + length);
@@ -779,7 +1818,7 @@ public class Midi2MML {
 		int velocity = message.getData2();
 		if (velocity != mmlTrack.getCurrentVelocity()) {
 			mmlTrack.setCurrentVelocity(velocity);
-			addCurrentVolumeEvent(mmlEvents, mmlTrack);
+			addCurrentVolumeEvent(mmlEvents, mmlTrack, tick);
 		}
 
 		// write some initialization for the first note
@@ -815,9 +1854,9 @@ public class Midi2MML {
 		mmlTrack.setCurrentNoteLastTick(currentNoteLastTick);
 	}
 	
-	private void handleOtherMessages(Midi2MMLTrack mmlTrack, List<MMLEvent> mmlEvents, MidiEvent event,
+	private void handleOtherMessages(MMLConversion conversion, Midi2MMLTrack mmlTrack, List<MMLEvent> mmlEvents, MidiEvent event,
 			long mmlLastTick, long tick) throws InvalidMidiDataException {
-		List<MMLEvent> newMML = convertMidiEventToMML(event, mmlTrack);
+		List<MMLEvent> newMML = convertMidiEventToMML(conversion, event, mmlTrack);
 		if (!newMML.isEmpty()) {
 			mmlEvents.addAll(newMML);
 			if (tick >= mmlLastTick) {
@@ -826,107 +1865,17 @@ public class Midi2MML {
 		}
 	}
 
+	/**
+	 * Write the header and the macro definitions used by the last writeMML() call.
+	 * 
+	 * @return Header and macro definitions.
+	 */
 	public StringBuilder writeMacros() {
-		StringBuilder sb = new StringBuilder();
-		sb.append("#amk 2" + LINE_SEPARATOR);
-		if(getNoControlChanges()) {
-			return sb;
-		}
-
-
-		int i = 30;
-		sb.append(LINE_SEPARATOR + "#instruments {" + LINE_SEPARATOR);
-		for (int instr : instruments) {
-			sb.append("@0 $FF $E0 $00 $06 $00" + LINE_SEPARATOR);
-		}
-		sb.append("}" + LINE_SEPARATOR);
-		sb.append(LINE_SEPARATOR + "; Instrument macros" + LINE_SEPARATOR);
-		for (int instr : instruments) {
-			String macro = String.format("\"I%02X = %s%d\"%s", instr, mmlSymbol.getInstrument(), i++, LINE_SEPARATOR);
-			sb.append(macro);
-		}
-
-		sb.append(LINE_SEPARATOR + "; Pan macros" + LINE_SEPARATOR);
-		for (int pan : pannings) {
-			int y = findPanIndex(pan);
-			String macro = String.format("\"Y%02X = %s%d\"%s", pan, mmlSymbol.getPan(), y, LINE_SEPARATOR);
-			sb.append(macro);
-		}
-
-		sb.append(LINE_SEPARATOR + "; Volume macros" + LINE_SEPARATOR);
-		for (MidiVolume volume : volumes) {
-			int vol = volume.volume;
-			int qnt = volume.quantization;
-			int exp = volume.expression;
-			int pan = volume.pan;
-			
-			// Find which SMW panning better approximates the real panning
-			int index = findPanIndex(pan);
-			
-			// Compute the volume factor
-			double volFactor = ((double) vol / 127.0) * ((double) qnt / 127.0) * ((double) exp / 127.0);
-			
-			// If we have to correct the volume based on the panning,
-			// reduce it depending on how louder the panning is compared to the center.
-			if(!getNoPanCorrection() && index != 10) {
-				int rightIndex = index > 10 ? index : 20 - index;
-				double correction = (double) SMWTables.PAN_VALUES[10] / (double) SMWTables.PAN_VALUES[rightIndex];
-				volFactor *= Math.sqrt(correction);
-			}
-			
-			// Now find the final volume value to output, also taking into
-			// account the multiplying factor.
-			int v = (int) Math.round(255.0 * volFactor * Math.sqrt(getMultiplyVolumes()));
-			
-			// If the value is too high, throw an exception.
-			if(v > 255) {
-				throw new IllegalArgumentException(
-						String.format("Multiply factor %f is too high!", getMultiplyVolumes()));
-			}
-			
-			// Now generate the macro.
-			String panS = getNoPanCorrection() ? "" : String.format("P%02X", pan);
-			String macro = String.format("\"V%02XQ%02XE%02X%s = %s%d\"%s", vol, qnt, exp, panS,
-					mmlSymbol.getVolume(), v, LINE_SEPARATOR);
-			sb.append(macro);
+		MMLConversion conversion = lastConversion;
+		if (conversion == null) {
+			conversion = new MMLConversion(this, null);
 		}
-		sb.append(LINE_SEPARATOR);
-		return sb;
-	}
-	
-	private int findPanIndex(int pan) {
-		switch(pan) {
-		case 0:
-			return 20;
-		case 64:
-			return 10;
-		case 127:
-			return 0;
-		default:
-			break;
-		}
-		
-		double panFactor = (double) pan / (double) (128-pan);
-		
-		double previous = Double.POSITIVE_INFINITY;
-		double current;
-		
-		for(int index = 0; index <= 20; index++) {
-			if(SMWTables.PAN_VALUES[index] == 0) {
-				current = Double.POSITIVE_INFINITY;
-			} else {
-				current = (double) SMWTables.PAN_VALUES[20-index] / (double) SMWTables.PAN_VALUES[index];
-			}
-			
-			double diff = current - panFactor;
-			if(index != 0 && diff * previous <= 0) {
-				return Math.abs(diff) <= Math.abs(previous) ? index : index - 1;
-			}
-			
-			previous = diff;
-		}
-		
-		return 0;
+		return conversion.writeMacros();
 	}
 
 	/**
@@ -934,11 +1883,13 @@ public class Midi2MML {
 	 * 
 	 * @param seq
 	 *            Input MIDI sequence.
+	 * @param token
+	 *            Token to stop the conversion, null if the conversion cannot be cancelled.
 	 * @return List of MIDI notes.
 	 * @throws InvalidMidiDataException
 	 *             throws if unexpected MIDI event is appeared.
 	 */
-	private List<List<MidiNote>> getMidiNotes(Sequence seq) throws InvalidMidiDataException {
+	private List<List<MidiNote>> getMidiNotes(Sequence seq, CancellationToken token) throws InvalidMidiDataException {
 		final int trackCount = seq.getTracks().length;
 
 		List<List<MidiNote>> midiTrackNotes = new ArrayList<>(trackCount);
@@ -947,6 +1898,10 @@ public class Midi2MML {
 
 			List<MidiNote> midiNotes = new ArrayList<>();
 			for (int midiEventIndex = 0; midiEventIndex < track.size(); midiEventIndex++) {
+				if (token != null && (midiEventIndex & CANCELLATION_CHECK_MASK) == 0) {
+					token.check(null);
+				}
+
 				MidiEvent event = track.get(midiEventIndex);
 				if (event.getMessage() instanceof ShortMessage) {
 					ShortMessage message = (ShortMessage) event.getMessage();
@@ -973,11 +1928,6 @@ public class Midi2MML {
 				if (note.getLength() == -1) {
 					throw new InvalidMidiDataException("Sequence contains an unfinished note.");
 				}
-				// dump for debug
-				if (DEBUG_DUMP) {
-					System.out.format("[ch%d/%d] Note (%d) len=%d vel=%d%n", note.getChannel(), note.getTime(),
-							note.getNoteNumber(), note.getLength(), note.getVelocity());
-				}
 			}
 			midiTrackNotes.add(midiNotes);
 		}
@@ -988,91 +1938,68 @@ public class Midi2MML {
 	 * Get MIDI time signatures from sequence.
 	 * 
 	 * @param seq Input MIDI sequence.
+	 * @param token Token to stop the conversion, null if the conversion cannot be cancelled.
 	 * @return List of MIDI time signatures.
 	 * @throws InvalidMidiDataException if unexpected MIDI event is found.
 	 */
-	private List<MidiTimeSignature> getMidiTimeSignatures(Sequence seq) throws InvalidMidiDataException {
+	List<MidiTimeSignature> getMidiTimeSignatures(Sequence seq, CancellationToken token)
+			throws InvalidMidiDataException {
 		List<MidiTimeSignature> timeSignatures = new ArrayList<>();
 
-		final int trackCount = seq.getTracks().length;
 		final int defaultNumerator = 4;
 		final int defaultDenominator = 2;
 
-		int numerator = defaultNumerator;
-		int denominator = defaultDenominator;
-		long measureLength = ((seq.getResolution() * 4 * numerator) >> denominator);
-		long nextMeasureTick = measureLength;
+		// collect time signature events in order of tick, and of track for the same tick
+		List<MidiEvent> events = new ArrayList<>();
+		for (Track track : seq.getTracks()) {
+			for (int eventIndex = 0; eventIndex < track.size(); eventIndex++) {
+				if (token != null && (eventIndex & CANCELLATION_CHECK_MASK) == 0) {
+					token.check(null);
+				}
 
-		long tick = 0;
-		int measure = 0;
-		int measureOfLastSignature = -1;
-		boolean finished = false;
-		int[] eventIndex = new int[trackCount];
-		while (!finished) {
-			if (tick == nextMeasureTick) {
-				nextMeasureTick += measureLength;
-				measure++;
+				MidiEvent event = track.get(eventIndex);
+				if (event.getMessage() instanceof MetaMessage
+						&& ((MetaMessage) event.getMessage()).getType() == MidiUtil.META_TIME_SIGNATURE) {
+					events.add(event);
+				}
 			}
+		}
+		events.sort(Comparator.comparingLong(MidiEvent::getTick));
 
-			for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
-				Track track = seq.getTracks()[trackIndex];
-				while (eventIndex[trackIndex] < track.size()) {
-					MidiEvent event = track.get(eventIndex[trackIndex]);
-					if (event.getTick() != tick)
-						break;
-					eventIndex[trackIndex]++;
-
-					if (event.getMessage() instanceof MetaMessage) {
-						MetaMessage message = (MetaMessage) event.getMessage();
-						byte[] data = message.getData();
-
-						switch (message.getType()) {
-							case MidiUtil.META_TIME_SIGNATURE:
-								if (data.length != 4) {
-									throw new InvalidMidiDataException("Illegal time signature event.");
-								}
-
-								if (nextMeasureTick - measureLength != tick) {
-									throw new InvalidMidiDataException(
-											"Time signature event is not located at the measure boundary.");
-								}
-
-								if (measure == measureOfLastSignature) {
-									throw new InvalidMidiDataException(
-											"Two or more time signature event are located at the same time.");
-								}
-
-								if (timeSignatures.isEmpty() && measure != 0) {
-									throw new InvalidMidiDataException(
-											"First time signature is not located at the first measure.");
-								}
+		// measures are counted from the last time signature
+		long measureLength = (seq.getResolution() * 4 * defaultNumerator) >> defaultDenominator;
+		long baseTick = 0;
+		int baseMeasure = 0;
+		int measureOfLastSignature = -1;
+		for (MidiEvent event : events) {
+			byte[] data = ((MetaMessage) event.getMessage()).getData();
+			if (data.length != 4) {
+				throw new InvalidMidiDataException("Illegal time signature event.");
+			}
 
-								MidiTimeSignature newTimeSignature = new MidiTimeSignature(data[0] & 0xff,
-										data[1] & 0xff, measure);
-								int newMeasureLength = newTimeSignature.getLength(seq.getResolution());
-								nextMeasureTick = (nextMeasureTick - measureLength) + newMeasureLength;
-								measureLength = newMeasureLength;
-								measureOfLastSignature = measure;
-								timeSignatures.add(newTimeSignature);
-								break;
+			long tick = event.getTick();
+			int measure = baseMeasure + (int) ((tick - baseTick) / measureLength);
+			if (baseTick + (measure - baseMeasure) * measureLength != tick) {
+				throw new InvalidMidiDataException("Time signature event is not located at the measure boundary.");
+			}
 
-							default:
-								break;
-						}
-					}
-				}
+			if (measure == measureOfLastSignature) {
+				throw new InvalidMidiDataException("Two or more time signature event are located at the same time.");
 			}
 
-			finished = true;
-			for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
-				Track track = seq.getTracks()[trackIndex];
-				if (eventIndex[trackIndex] < track.size()) {
-					finished = false;
-					break;
-				}
+			if (timeSignatures.isEmpty() && measure != 0) {
+				throw new InvalidMidiDataException("First time signature is not located at the first measure.");
 			}
 
-			tick++;
+			MidiTimeSignature newTimeSignature = new MidiTimeSignature(data[0] & 0xff, data[1] & 0xff, measure);
+			measureLength = newTimeSignature.getLength(seq.getResolution());
+			if (measureLength <= 0) {
+				throw new InvalidMidiDataException("Illegal time signature event.");
+			}
+			baseTick = tick;
+			baseMeasure = measure;
+			measureOfLastSignature = measure;
+			timeSignatures.add(newTimeSignature);
 		}
 
 		if (timeSignatures.isEmpty()) {
@@ -1085,6 +2012,8 @@ public class Midi2MML {
 	/**
 	 * Convert specified MIDI event to MML.
 	 * 
+	 * @param conversion
+	 *            Conversion state.
 	 * @param event
 	 *            MIDI event to be converted.
 	 * @param mmlTrack
@@ -1093,7 +2022,7 @@ public class Midi2MML {
 	 * @throws InvalidMidiDataException
 	 *             throws if unexpected MIDI event is appeared.
 	 */
-	private List<MMLEvent> convertMidiEventToMML(MidiEvent event, Midi2MMLTrack mmlTrack)
+	private List<MMLEvent> convertMidiEventToMML(MMLConversion conversion, MidiEvent event, Midi2MMLTrack mmlTrack)
 			throws InvalidMidiDataException {
 		List<MMLEvent> mmlEvents = new ArrayList<>();
 		if (event.getMessage() instanceof ShortMessage) {
@@ -1106,9 +2035,7 @@ public class Midi2MML {
 					break;
 				case ShortMessage.PROGRAM_CHANGE: // Instrument change
 					int instr = message.getData1();
-					if (!instruments.contains(instr)) {
-						instruments.add(instr);
-					}
+					mmlTrack.addMacroUse(new MMLMacroUse(event.getTick(), MMLMacroUse.TYPE_INSTRUMENT, instr));
 					String sInstr = String.format("%02X%s", instr, space);
 					addControlChange(mmlEvents, new MMLEvent(mmlSymbol.getInstrumentMacro(), new String[]{sInstr}));
 					break;
@@ -1119,17 +2046,15 @@ public class Midi2MML {
 							int volume = message.getData2();
 							if (volume != mmlTrack.getCurrentVolume()) {
 								mmlTrack.setCurrentVolume(volume);
-								addCurrentVolumeEvent(mmlEvents, mmlTrack);
+								addCurrentVolumeEvent(mmlEvents, mmlTrack, event.getTick());
 							}
 							break;
 						case 0x0A: // Pan
 							int pan = message.getData2();
-							if (!pannings.contains(pan)) {
-								pannings.add(pan);
-							}
+							mmlTrack.addMacroUse(new MMLMacroUse(event.getTick(), MMLMacroUse.TYPE_PANNING, pan));
 							if(pan != mmlTrack.getCurrentPan()) {
 								mmlTrack.setCurrentPan(pan);
-								addCurrentVolumeEvent(mmlEvents, mmlTrack);
+								addCurrentVolumeEvent(mmlEvents, mmlTrack, event.getTick());
 								String sPan = String.format("%02X%s", pan, space);
 								addControlChange(mmlEvents, new MMLEvent(mmlSymbol.getPanMacro(), new String[]{sPan}));
 							}
@@ -1139,7 +2064,7 @@ public class Midi2MML {
 								int expression = message.getData2();
 								if (expression != mmlTrack.getCurrentExpression()) {
 									mmlTrack.setCurrentExpression(expression);
-									addCurrentVolumeEvent(mmlEvents, mmlTrack);
+									addCurrentVolumeEvent(mmlEvents, mmlTrack, event.getTick());
 								}
 							}
 							break;
@@ -1152,18 +2077,11 @@ public class Midi2MML {
 			}
 		} else if (event.getMessage() instanceof MetaMessage) {
 			MetaMessage message = (MetaMessage) event.getMessage();
-			byte[] data = message.getData();
 
 			switch (message.getType()) {
 				case MidiUtil.META_TEMPO:
-					if (data.length != 3) {
-						throw new InvalidMidiDataException("Illegal tempo event.");
-					}
-
-					int usLenOfQN = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
-					double bpm = 60000000.0 / usLenOfQN;
-					bpm *= TEMPO_FACTOR;	// BPM to N-SPC tempo conversion
-					mmlEvents.add(new MMLEvent(mmlSymbol.getTempo(), new String[]{String.format("%.0f", bpm)}));
+					int tempo = conversion.getTempoMap().getTempo(event.getTick());
+					mmlEvents.add(new MMLEvent(mmlSymbol.getTempo(), new String[]{Integer.toString(tempo)}));
 
 					if (putSpaces) {
 						mmlEvents.add(new MMLEvent(" "));
@@ -1176,15 +2094,12 @@ public class Midi2MML {
 		return mmlEvents;
 	}
 
-	private void addCurrentVolumeEvent(List<MMLEvent> mmlEvents, Midi2MMLTrack mmlTrack) {
+	private void addCurrentVolumeEvent(List<MMLEvent> mmlEvents, Midi2MMLTrack mmlTrack, long tick) {
 		int volume = mmlTrack.getCurrentVolume();
 		int velocity = mmlTrack.getCurrentVelocity();
 		int expression = mmlTrack.getCurrentExpression();
 		int pan = mmlTrack.getCurrentPan();
-		MidiVolume newVolume = new MidiVolume(volume, velocity, expression, pan);
-		if (!volumes.contains(newVolume)) {
-			volumes.add(newVolume);
-		}
+		mmlTrack.addMacroUse(new MMLMacroUse(tick, new MidiVolume(volume, velocity, expression, pan)));
 		String space = putSpaces ? " " : "";
 		String panS = getNoPanCorrection() ? "" : String.format("P%02X", pan);
 		String sVol = String.format("%02XQ%02XE%02X%s%s", volume, velocity, expression, panS, space);
@@ -1197,16 +2112,79 @@ public class Midi2MML {
 		}
 	}
 
+	/**
+	 * Returns true if the message can change the MML with the current options.
+	 * 
+	 * @param message
+	 *            MIDI message.
+	 * @return false if the message is ignored by the converter, such as SysEx, pitch bend or text.
+	 */
+	private boolean isConvertedMessage(MidiMessage message) {
+		if (message instanceof ShortMessage) {
+			ShortMessage shortMessage = (ShortMessage) message;
+			switch (shortMessage.getCommand()) {
+				case ShortMessage.NOTE_ON:
+				case ShortMessage.NOTE_OFF:
+					return true;
+				case ShortMessage.PROGRAM_CHANGE:
+					return !noControlChanges;
+				case ShortMessage.CONTROL_CHANGE:
+					int controller = shortMessage.getData1();
+					return !noControlChanges && (controller == MidiUtil.CC_VOLUME || controller == MidiUtil.CC_PAN
+							|| (controller == MidiUtil.CC_EXPRESSION && !noExpression));
+				default:
+					return false;
+			}
+		} else if (message instanceof MetaMessage) {
+			int type = ((MetaMessage) message).getType();
+			return type == MidiUtil.META_TEMPO || type == MidiUtil.META_TIME_SIGNATURE
+					|| type == MidiUtil.META_END_OF_TRACK;
+		}
+		return false;
+	}
+
+	private static long getEventCount(Sequence seq) {
+		long eventCount = 0;
+		for (Track track : seq.getTracks()) {
+			eventCount += track.size();
+		}
+		return eventCount;
+	}
+
+	/**
+	 * Get the note converter for the current options, from the cache if it is shared.
+	 * 
+	 * @param tpqn
+	 *            Ticks per quarter note of the sequence.
+	 * @param token
+	 *            Token to stop building the note table, null if it cannot be cancelled.
+	 * @return Note converter.
+	 */
+	private MMLNoteConverter getNoteConverter(int tpqn, CancellationToken token) {
+		if (noteConverterCache == null) {
+			return new MMLNoteConverter(mmlSymbol, tpqn, maxDots, useTicks, token);
+		}
+		String key = tpqn + ":" + maxDots + ":" + useTicks;
+		return noteConverterCache.computeIfAbsent(key,
+				k -> new MMLNoteConverter(mmlSymbol, tpqn, maxDots, useTicks, token));
+	}
+
 	/**
 	 * This method rearranges the messages in all the tracks so that non-note messages never happen at the same time as
 	 * a NOTE_OFF message (they get moved to the position of the next NOTE_ON message). This fixes an issue where having
 	 * such an event and a NOTE_OFF message would result in a tied note rather than a rest in the resulting MML.
 	 * 
 	 * @param seq
+	 * @param token
+	 *            Token to stop the conversion, null if the conversion cannot be cancelled.
 	 */
-	private void fixEvents(Sequence seq) {
+	void fixEvents(Sequence seq, CancellationToken token) {
 		for (Track track : seq.getTracks()) {
 			for (int j = 0; j < track.size(); j++) {
+				if (token != null && (j & CANCELLATION_CHECK_MASK) == 0) {
+					token.check(null);
+				}
+
 				MidiEvent e = track.get(j);
 				if (e.getMessage() instanceof ShortMessage) {
 					ShortMessage sm = (ShortMessage) e.getMessage();
@@ -1256,128 +2234,19 @@ public class Midi2MML {
 		}
 	}
 
-	private String byteArrayToString(byte[] bytes) {
-		StringBuilder buf = new StringBuilder();
-		for (byte b : bytes) {
-			if (buf.length() != 0)
-				buf.append(" ");
-			buf.append(String.format("%02X", b));
-		}
-		return buf.toString();
-	}
-	
-	private long quantize(Sequence seq, MMLNoteConverter noteConv, long minLength, long maxLength) {
-		long length = minLength;
-		
-		if(!quantizationEnabled) {
-			if(DEBUG_DUMP) {
-				System.out.format(",length=%d", length);
-			}
-			return length;
-		}
-		
-		long wholeNoteCount = (minLength - 1) / (seq.getResolution() * 4);
-
-		// remove whole notes temporarily
-		minLength -= (seq.getResolution() * 4) * wholeNoteCount;
-		maxLength -= (seq.getResolution() * 4) * wholeNoteCount;
-
-		// find the nearest 2^n note
-		// minLength/nearPow2 is almost always in [0.5,1.0]
-		// (almost, because nearPow2 may have slight
-		// error at a very short note)
-		// nearPow2 can be greater than maxLength
-		long nearPow2 = (long) seq.getResolution() * 4;
-		while (nearPow2 / 2 >= minLength)
-			nearPow2 /= 2;
-
-		List<Double> rateCandidates = new ArrayList<>(Arrays.asList(0.5, 1.0));
-		int maxDotCount = (maxDots != -1) ? maxDots : Integer.MAX_VALUE;
-		double dottedNoteRate = 0.5;
-		for (int dot = 1; dot <= maxDotCount; dot++) {
-			if (nearPow2 % (1 << dot) != 0)
-				break;
-
-			dottedNoteRate += Math.pow(0.5, dot + 1.0);
-			rateCandidates.add(dottedNoteRate); // dotted note (0.75, 0.875...)
-		}
-		if (nearPow2 * 2 % 3 == 0)
-			rateCandidates.add(2.0 / 3.0); // triplet
-		Collections.sort(rateCandidates);
-
-		if (DEBUG_DUMP) {
-			StringBuilder ratesBuffer = new StringBuilder();
-			boolean firstItem = true;
-			ratesBuffer.append("[");
-			for (double rateCandidate : rateCandidates) {
-				if (firstItem)
-					firstItem = false;
-				else
-					ratesBuffer.append(",");
-				ratesBuffer.append(String.format("%.3f", rateCandidate));
-			}
-			ratesBuffer.append("]");
-			System.out.println("rateCandidates=" + ratesBuffer.toString());
-		}
-
-		double rateLowerLimit = (double) minLength / nearPow2;
-		double rateUpperLimit = (double) maxLength / nearPow2;
-
-		long quantizeNoteLength = 0;
-		if (quantizePrecision != QUANTIZE_PRECISION_AS_IS) {
-			// can have error
-			quantizeNoteLength = (seq.getResolution() * 4) / quantizePrecision;
-		}
-
-		double rateNearest = 0.0;
-		double rateBestDistance = Double.MAX_VALUE;
-		for (double rateCandidate : rateCandidates) {
-			rateCandidate = Math.min(rateCandidate, rateUpperLimit);
-
-			double rateDistance = Math.abs(rateLowerLimit - rateCandidate);
-			if (rateDistance <= rateBestDistance) {
-				boolean rateRequiresUpdate = true;
-				if (nearPow2 >= quantizeNoteLength && rateCandidate < rateUpperLimit) {
-					long noteLengthCandidate = Math.round(nearPow2 * rateCandidate);
-					List<Integer> noteLengths = noteConv
-							.getPrimitiveNoteLengths((int) noteLengthCandidate, true);
-					rateRequiresUpdate = (noteLengths
-							.get(noteLengths.size() - 1) >= quantizeNoteLength);
-				}
-				if (rateRequiresUpdate) {
-					rateNearest = rateCandidate;
-					rateBestDistance = rateDistance;
-				}
-			}
-			if (rateCandidate >= rateUpperLimit)
-				break;
-		}
-		length = Math.round(nearPow2 * rateNearest);
-
-		if (length < minLength) {
-			List<Integer> restLengths = noteConv
-					.getPrimitiveNoteLengths((int) (maxLength - length), false);
-			for (int i = restLengths.size() - 1; i >= 0; i--) {
-				int restLength = restLengths.get(i);
-				if (length + restLength <= minLength) {
-					length += restLength;
-				} else {
-					long oldDistance = minLength - length;
-					long newDistance = (length + restLength) - minLength;
-					if (newDistance <= oldDistance)
-						length += restLength;
-					break;
-				}
-			}
+	private static void traceMidiEvent(ConversionTrace trace, int trackIndex, MidiEvent event) {
+		MidiMessage message = event.getMessage();
+		long packedMessage;
+		if (message instanceof ShortMessage) {
+			ShortMessage shortMessage = (ShortMessage) message;
+			packedMessage = ConversionTrace.packMessage(shortMessage.getStatus(), shortMessage.getData1(),
+					shortMessage.getData2());
+		} else if (message instanceof MetaMessage) {
+			packedMessage = ConversionTrace.packMessage(message.getStatus(), ((MetaMessage) message).getType(), 0);
+		} else {
+			packedMessage = ConversionTrace.packMessage(message.getStatus(), 0, 0);
 		}
-
-		length += wholeNoteCount * (seq.getResolution() * 4);
-		
-		if(DEBUG_DUMP) {
-			System.out.format(",length=%d,minLength=%d,maxLength=%d,nearPow2=%d,rateLimit=[%.2f,%.2f],rateNearest=%.2f",
-					length, minLength, maxLength, nearPow2, rateLowerLimit, rateUpperLimit, rateNearest);
-		}
-		
-		return length;
+		trace.add(ConversionTrace.TYPE_MIDI_EVENT, trackIndex, event.getTick(), packedMessage, message.getLength(),
+				0, 0, 0);
 	}
 }
@@ -1,5 +1,6 @@
 package com.googlecode.loveemu.petitemm;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -14,6 +15,16 @@ class Midi2MMLTrack {
 	 */
 	private List<MMLEvent> mmlEventList = new LinkedList<>();
 	
+	/**
+	 * Macros used by the track, in order of use.
+	 */
+	private List<MMLMacroUse> macroUses = new ArrayList<>();
+	
+	/**
+	 * True if the track continues a previous part which has MML events.
+	 */
+	private boolean continued = false;
+	
 	/**
 	 * Current position of conversion in tick.
 	 */
@@ -54,6 +65,11 @@ class Midi2MMLTrack {
 	 */
 	private boolean useTriplet = false;
 	
+	/**
+	 * True if repeated commands are written as loops.
+	 */
+	private boolean useLoops = false;
+	
 	/**
 	 * MML symbol set.
 	 */
@@ -80,6 +96,106 @@ class Midi2MMLTrack {
 		this.mmlSymbol = mmlSymbol;
 	}
 	
+	/**
+	 * Construct a track which continues the conversion from the state of another track.
+	 * The MML events and the macro uses are not copied.
+	 * 
+	 * @param obj Track which has the state to start from.
+	 */
+	Midi2MMLTrack(Midi2MMLTrack obj) {
+		this.mmlSymbol = obj.mmlSymbol;
+		this.useTriplet = obj.useTriplet;
+		this.useLoops = obj.useLoops;
+		this.continued = !obj.isEmpty();
+		copyState(obj);
+	}
+	
+	/**
+	 * Copy the conversion state of another track.
+	 */
+	private void copyState(Midi2MMLTrack obj) {
+		tick = obj.tick;
+		measure = obj.measure;
+		octave = obj.octave;
+		firstNote = obj.firstNote;
+		noteNumber = obj.noteNumber;
+		midiEventIndex = obj.midiEventIndex;
+		finished = obj.finished;
+		currentNoteLastTick = obj.currentNoteLastTick;
+		currentVolume = obj.currentVolume;
+		currentVelocity = obj.currentVelocity;
+		currentExpression = obj.currentExpression;
+		currentPan = obj.currentPan;
+		midNote = obj.midNote;
+		noteIndex = obj.noteIndex;
+		currentNoteIndex = obj.currentNoteIndex;
+	}
+	
+	/**
+	 * Returns true if the conversion state is same as another track,
+	 * so that the conversion of the following MIDI events gives the same result.
+	 * 
+	 * @param obj Track to be compared.
+	 * @return true if the state is same.
+	 */
+	boolean hasSameState(Midi2MMLTrack obj) {
+		return tick == obj.tick
+				&& measure == obj.measure
+				&& octave == obj.octave
+				&& firstNote == obj.firstNote
+				&& noteNumber == obj.noteNumber
+				&& midiEventIndex == obj.midiEventIndex
+				&& finished == obj.finished
+				&& currentNoteLastTick == obj.currentNoteLastTick
+				&& currentVolume == obj.currentVolume
+				&& currentVelocity == obj.currentVelocity
+				&& currentExpression == obj.currentExpression
+				&& currentPan == obj.currentPan
+				&& midNote == obj.midNote
+				&& noteIndex == obj.noteIndex
+				&& currentNoteIndex == obj.currentNoteIndex
+				&& isEmpty() == obj.isEmpty();
+	}
+	
+	/**
+	 * Append the MML events and the macro uses of a track which continues this track,
+	 * and take over its conversion state.
+	 * 
+	 * @param obj Track constructed from the state of this track.
+	 */
+	void append(Midi2MMLTrack obj) {
+		mmlEventList.addAll(obj.mmlEventList);
+		macroUses.addAll(obj.macroUses);
+		copyState(obj);
+	}
+	
+	/**
+	 * Record a use of a macro.
+	 * 
+	 * @param macroUse Use of an instrument, a volume or a panning.
+	 */
+	void addMacroUse(MMLMacroUse macroUse) {
+		macroUses.add(macroUse);
+	}
+	
+	/**
+	 * Get the macros used by the track.
+	 * 
+	 * @return Macro uses in order of use.
+	 */
+	List<MMLMacroUse> getMacroUses() {
+		return macroUses;
+	}
+	
+	/**
+	 * Set if the track continues a previous part which has MML events.
+	 * 
+	 * @param continued true if the previous part is not empty.
+	 */
+	void setContinued(boolean continued) {
+		this.continued = continued;
+	}
+	
 	public int getNoteIndex() {
 		return noteIndex;
 	}
@@ -231,6 +347,24 @@ class Midi2MMLTrack {
 		this.useTriplet = useTriplet;
 	}
 	
+	/**
+	 * Get if repeated commands are written as loops.
+	 * 
+	 * @return true if loops are used.
+	 */
+	public boolean getUseLoops() {
+		return useLoops;
+	}
+	
+	/**
+	 * Set if repeated commands are written as loops.
+	 * 
+	 * @param useLoops true if loops are used.
+	 */
+	public void setUseLoops(boolean useLoops) {
+		this.useLoops = useLoops;
+	}
+	
 	/**
 	 * Clear the current MML text.
 	 */
@@ -342,12 +476,21 @@ class Midi2MMLTrack {
 	}
 	
 	/**
-	 * Returns true if, and only if, length() is 0.
+	 * Returns true if, and only if, length() is 0 and the track does not continue a previous part.
 	 * 
 	 * @return true if length() is 0, otherwise false
 	 */
 	public boolean isEmpty() {
-		return mmlEventList.isEmpty();
+		return mmlEventList.isEmpty() && !continued;
+	}
+	
+	/**
+	 * Returns the number of MML events.
+	 * 
+	 * @return Number of MML events.
+	 */
+	int size() {
+		return mmlEventList.size();
 	}
 	
 	/**
@@ -357,63 +500,115 @@ class Midi2MMLTrack {
 	 */
 	void writeMML(StringBuilder writer) {
 		if(!mmlEventList.isEmpty()) {
-			this.trimIfEmpty();
-			
-			StringBuilder mmlBuffer = new StringBuilder();
+			if(useLoops) {
+				writeCommands(getCommands(), writer);
+			} else {
+				StringBuilder mmlBuffer = new StringBuilder();
+				writeEvents(mmlBuffer, null);
+				writeText(mmlBuffer.toString(), writer);
+			}
+		}
+	}
+	
+	/**
+	 * Get the MML commands to be written, without redundant macros.
+	 * 
+	 * @return MML commands in order, empty if the track is empty.
+	 */
+	List<String> getCommands() {
+		List<String> commands = new ArrayList<>(mmlEventList.size());
+		if(!mmlEventList.isEmpty()) {
+			writeEvents(null, commands);
+		}
+		return commands;
+	}
+	
+	/**
+	 * Write the final MML from the commands given by getCommands().
+	 * 
+	 * @param commands MML commands, which may be modified by the caller.
+	 * @param writer Destination to write MML text.
+	 */
+	void writeCommands(List<String> commands, StringBuilder writer) {
+		StringBuilder mmlBuffer = new StringBuilder();
+		if(useLoops) {
+			// Loops are found after the redundant macros are removed,
+			// so each repeat sends the same commands as the original text.
+			new MMLLoopFinder(mmlSymbol).write(commands, mmlBuffer);
+		} else {
+			for(String command : commands) {
+				mmlBuffer.append(command);
+			}
+		}
+		writeText(mmlBuffer.toString(), writer);
+	}
+	
+	/**
+	 * Write the events except for redundant macros, either as text or as a list of commands.
+	 * 
+	 * @param mmlBuffer Destination to write MML text, null if commands is used.
+	 * @param commands Destination to add MML commands, null if mmlBuffer is used.
+	 */
+	private void writeEvents(StringBuilder mmlBuffer, List<String> commands) {
+		this.trimIfEmpty();
+		
+		// Satanic way to solve ties issues with commands inside notes
+		boolean skip;
+		boolean skipNext = false;
+		for(int i = 0; i < mmlEventList.size(); i++) {
+			if(skipNext) {
+				skipNext = false;
+				continue;
+			}
+			skip = false;
+			MMLEvent event = mmlEventList.get(i);
+			String command = event.getCommand();
 			
-			// Satanic way to solve ties issues with commands inside notes
-			boolean skip;
-			boolean skipNext = false;
-			for(int i = 0; i < mmlEventList.size(); i++) {
-				if(skipNext) {
-					skipNext = false;
-					continue;
-				}
-				skip = false;
-				MMLEvent event = mmlEventList.get(i);
-				String command = event.getCommand();
-				
-				/*
-				if(command.equals(mmlSymbol.getTie())) {
-					// Check if we have a tie followed by a note command
-					// If yes, remove the note name and skip it
-					if(i < mmlEventList.size() - 1) {
-						String nextCommand = mmlEventList.get(i+1).getCommand();
-						if(mmlSymbol.isNoteOrRest(nextCommand)) {
-							mmlBuffer.append(event.getCommand());
-							mmlBuffer.append(nextCommand.replaceAll("[abcdefgr][+-]?", ""));
-							skip = true;
-							skipNext = true;
-						} else if(nextCommand.equals(mmlSymbol.getOctaveDown())
-								|| nextCommand.equals(mmlSymbol.getOctaveUp())) {
-							skip = true;
-						}
+			/*
+			if(command.equals(mmlSymbol.getTie())) {
+				// Check if we have a tie followed by a note command
+				// If yes, remove the note name and skip it
+				if(i < mmlEventList.size() - 1) {
+					String nextCommand = mmlEventList.get(i+1).getCommand();
+					if(mmlSymbol.isNoteOrRest(nextCommand)) {
+						mmlBuffer.append(event.getCommand());
+						mmlBuffer.append(nextCommand.replaceAll("[abcdefgr][+-]?", ""));
+						skip = true;
+						skipNext = true;
+					} else if(nextCommand.equals(mmlSymbol.getOctaveDown())
+							|| nextCommand.equals(mmlSymbol.getOctaveUp())) {
+						skip = true;
 					}
-				} else */
-				if(command.equals(mmlSymbol.getVolumeMacro()) ||
-						command.equals(mmlSymbol.getPanMacro()) ||
-						command.equals(mmlSymbol.getInstrumentMacro())) {
-					skip = checkIfCommandNext(command, i);
-				}
-				
-				if(!skip) {
-					// If not set to skip the current event, write it.
-					mmlBuffer.append(event.toString());
 				}
+			} else */
+			if(command.equals(mmlSymbol.getVolumeMacro()) ||
+					command.equals(mmlSymbol.getPanMacro()) ||
+					command.equals(mmlSymbol.getInstrumentMacro())) {
+				skip = checkIfCommandNext(command, i);
 			}
 			
-			String mmlString = mmlBuffer.toString();
-			if(useTriplet) {
-				mmlString = convertToTriplet(mmlString);
-			}
-			writer.append(mmlString);
-			
-			if(!mmlString.endsWith(System.getProperty("line.separator"))) {
-				writer.append(System.getProperty("line.separator"));
+			if(!skip) {
+				// If not set to skip the current event, write it.
+				if(commands != null) {
+					commands.add(event.toString());
+				} else {
+					mmlBuffer.append(event.toString());
+				}
 			}
 		}
 	}
 	
+	private void writeText(String mmlString, StringBuilder writer) {
+		if(useTriplet) {
+			mmlString = convertToTriplet(mmlString);
+		}
+		writer.append(mmlString);
+		
+		if(!mmlString.endsWith(System.getProperty("line.separator"))) {
+			writer.append(System.getProperty("line.separator"));
+		}
+	}
+	
 	private boolean checkIfCommandNext(String command, int index) {
 		for(int j = index + 1; j < mmlEventList.size(); j++) {
 			String other = mmlEventList.get(j).getCommand();
@@ -0,0 +1,206 @@
+package com.googlecode.loveemu.petitemm;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+/**
+ * Global tempo map of a sequence, in N-SPC tempo.
+ * N-SPC tempo is global and much coarser than MIDI tempo, so the map drops tempo events
+ * which do not change the rounded tempo, and merges tempo ramps within a tolerance.
+ * The kept tempo events are moved into a single track, the first track which has tempo events.
+ */
+class MidiTempoMap {
+
+	/**
+	 * A tempo event found in a track.
+	 */
+	private static class TempoEvent {
+		private final MidiEvent event;
+		private final int trackIndex;
+		private final int tempo;
+
+		private TempoEvent(MidiEvent event, int trackIndex, int tempo) {
+			this.event = event;
+			this.trackIndex = trackIndex;
+			this.tempo = tempo;
+		}
+	}
+
+	/**
+	 * N-SPC tempo of the kept tempo events, by tick.
+	 */
+	private final TreeMap<Long, Integer> tempos = new TreeMap<>();
+
+	/**
+	 * Sequence which has only the kept tempo events.
+	 */
+	private final Sequence sequence;
+
+	/**
+	 * Number of tempo events removed from the sequence.
+	 */
+	private final int droppedCount;
+
+	/**
+	 * Build the tempo map of a sequence.
+	 * A tempo change within the tolerance of the last kept tempo is dropped,
+	 * unless the tempo holds for a quarter note or longer, so that a stable tempo is always exact.
+	 *
+	 * @param sourceSeq Sequence to be processed.
+	 * @param tolerance Maximum difference of N-SPC tempo to be merged, 0 to drop repeated tempo only.
+	 * @throws InvalidMidiDataException throw if a tempo event is invalid.
+	 */
+	MidiTempoMap(Sequence sourceSeq, int tolerance) throws InvalidMidiDataException {
+		// collect tempo events in order of tick, and of track for the same tick
+		List<TempoEvent> events = new ArrayList<>();
+		Track[] sourceTracks = sourceSeq.getTracks();
+		for (int trackIndex = 0; trackIndex < sourceTracks.length; trackIndex++) {
+			Track track = sourceTracks[trackIndex];
+			for (int eventIndex = 0; eventIndex < track.size(); eventIndex++) {
+				MidiEvent event = track.get(eventIndex);
+				if (isTempoEvent(event)) {
+					events.add(new TempoEvent(event, trackIndex, getTempo((MetaMessage) event.getMessage())));
+				}
+			}
+		}
+		events.sort((event1, event2) -> Long.compare(event1.event.getTick(), event2.event.getTick()));
+
+		// the last event of a tick is effective, and the first one of the same tempo represents it
+		List<TempoEvent> tickEvents = new ArrayList<>();
+		for (int index = 0; index < events.size(); index++) {
+			TempoEvent event = events.get(index);
+			int lastIndex = index;
+			while (lastIndex + 1 < events.size() && events.get(lastIndex + 1).event.getTick() == event.event.getTick()) {
+				lastIndex++;
+			}
+			int tempo = events.get(lastIndex).tempo;
+			for (int sameTickIndex = index; sameTickIndex <= lastIndex; sameTickIndex++) {
+				if (events.get(sameTickIndex).tempo == tempo) {
+					tickEvents.add(events.get(sameTickIndex));
+					break;
+				}
+			}
+			index = lastIndex;
+		}
+
+		Set<MidiEvent> keptEvents = new HashSet<>();
+		int ownerTrackIndex = sourceTracks.length;
+		TempoEvent lastKept = null;
+		for (int index = 0; index < tickEvents.size(); index++) {
+			TempoEvent event = tickEvents.get(index);
+			boolean keep;
+			if (lastKept == null) {
+				keep = true;
+			} else if (event.tempo == lastKept.tempo) {
+				keep = false;
+			} else if (Math.abs(event.tempo - lastKept.tempo) > tolerance) {
+				keep = true;
+			} else {
+				keep = index + 1 == tickEvents.size()
+						|| tickEvents.get(index + 1).event.getTick() - event.event.getTick() >= sourceSeq.getResolution();
+			}
+
+			if (keep) {
+				tempos.put(event.event.getTick(), event.tempo);
+				keptEvents.add(event.event);
+				lastKept = event;
+			}
+		}
+		for (TempoEvent event : events) {
+			ownerTrackIndex = Math.min(ownerTrackIndex, event.trackIndex);
+		}
+		droppedCount = events.size() - keptEvents.size();
+
+		boolean moved = false;
+		for (TempoEvent event : events) {
+			if (event.trackIndex != ownerTrackIndex && keptEvents.contains(event.event)) {
+				moved = true;
+				break;
+			}
+		}
+		if (droppedCount == 0 && !moved) {
+			sequence = sourceSeq;
+			return;
+		}
+
+		// rebuild the tracks, the kept events of the owner track stay in place
+		sequence = new Sequence(sourceSeq.getDivisionType(), sourceSeq.getResolution());
+		for (int trackIndex = 0; trackIndex < sourceTracks.length; trackIndex++) {
+			Track sourceTrack = sourceTracks[trackIndex];
+			Track track = sequence.createTrack();
+			for (int eventIndex = 0; eventIndex < sourceTrack.size(); eventIndex++) {
+				MidiEvent event = sourceTrack.get(eventIndex);
+				if (!isTempoEvent(event) || (trackIndex == ownerTrackIndex && keptEvents.contains(event))) {
+					track.add(event);
+				}
+			}
+		}
+		for (TempoEvent event : events) {
+			if (event.trackIndex != ownerTrackIndex && keptEvents.contains(event.event)) {
+				sequence.getTracks()[ownerTrackIndex].add(event.event);
+			}
+		}
+	}
+
+	/**
+	 * Get the sequence which has only the kept tempo events.
+	 *
+	 * @return Sequence, same as the source sequence if nothing is changed.
+	 */
+	Sequence getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Get number of tempo events removed from the sequence.
+	 *
+	 * @return Number of tempo events.
+	 */
+	int getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Get the N-SPC tempo of a kept tempo event.
+	 *
+	 * @param tick Tick of the tempo event.
+	 * @return N-SPC tempo.
+	 */
+	int getTempo(long tick) {
+		return tempos.get(tick);
+	}
+
+	private static boolean isTempoEvent(MidiEvent event) {
+		return event.getMessage() instanceof MetaMessage
+				&& ((MetaMessage) event.getMessage()).getType() == MidiUtil.META_TEMPO;
+	}
+
+	/**
+	 * Convert a MIDI tempo event to N-SPC tempo, rounded half up.
+	 */
+	private static int getTempo(MetaMessage message) throws InvalidMidiDataException {
+		byte[] data = message.getData();
+		if (data.length != 3) {
+			throw new InvalidMidiDataException("Illegal tempo event.");
+		}
+
+		int usLenOfQN = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+		if (usLenOfQN == 0) {
+			throw new InvalidMidiDataException("Illegal tempo event.");
+		}
+		double bpm = 60000000.0 / usLenOfQN;
+		bpm *= Midi2MML.TEMPO_FACTOR; // BPM to N-SPC tempo conversion
+		return BigDecimal.valueOf(bpm).setScale(0, RoundingMode.HALF_UP).intValue();
+	}
+}
@@ -160,6 +160,40 @@ public class MidiTimeSignature {
 		return baseMeasure + (int) ((tick - baseTick) / timeSignature.getLength(ppqn));
 	}
 	
+	/**
+	 * Get tick of the start of a measure.
+	 * 
+	 * @param measure        Measure number (starts from 0).
+	 * @param timeSignatures List of time signatures (must be sorted).
+	 * @param ppqn           Ticks per quarter note.
+	 * @return Tick of the first tick of the measure.
+	 */
+	public static long getTickByMeasure(int measure, List<MidiTimeSignature> timeSignatures, int ppqn) {
+		if(measure < 0)
+			throw new IllegalArgumentException("Measure must be a positive number.");
+		if(ppqn <= 0)
+			throw new IllegalArgumentException("PPQN must be greater than 0.");
+		if(timeSignatures.isEmpty())
+			throw new IllegalArgumentException("No time signature information.");
+		if(timeSignatures.get(0).getMeasure() != 0)
+			throw new IllegalArgumentException("First time signature is not located at the first measure.");
+		
+		long baseTick = 0;
+		int timeSigIndex;
+		for(timeSigIndex = 0; timeSigIndex < timeSignatures.size() - 1; timeSigIndex++) {
+			MidiTimeSignature timeSignature = timeSignatures.get(timeSigIndex);
+			MidiTimeSignature nextTimeSignature = timeSignatures.get(timeSigIndex + 1);
+			if(measure < nextTimeSignature.getMeasure())
+				break;
+			
+			int numberOfMeasures = nextTimeSignature.getMeasure() - timeSignature.getMeasure();
+			baseTick += (long) timeSignature.getLength(ppqn) * numberOfMeasures;
+		}
+		
+		MidiTimeSignature timeSignature = timeSignatures.get(timeSigIndex);
+		return baseTick + (long) timeSignature.getLength(ppqn) * (measure - timeSignature.getMeasure());
+	}
+	
 	/**
 	 * Get measure:tick string.
 	 * 
@@ -1,11 +1,14 @@
 package com.googlecode.loveemu.petitemm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Predicate;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
@@ -36,6 +39,10 @@ public class MidiUtil {
 	public static final int META_TIME_SIGNATURE = 0x58;
 	public static final int META_KEY_SIGNATURE = 0x59;
 	
+	public static final int CC_VOLUME = 0x07;
+	public static final int CC_PAN = 0x0A;
+	public static final int CC_EXPRESSION = 0x0B;
+	
 	private MidiUtil() {
 		super();
 	}
@@ -65,6 +72,21 @@ public class MidiUtil {
 	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
 	 */
 	public static Sequence separateMixedChannel(Sequence sourceSeq) throws InvalidMidiDataException {
+		return separateMixedChannel(sourceSeq, message -> true);
+	}
+	
+	/**
+	 * Separate tracks which contain messages to multiple channels, and drop messages at the same time.
+	 * Dropped channel messages still decide the track of their channel, so the tracks are same as without the filter.
+	 * End of track messages are never dropped.
+	 * 
+	 * @param seq    Sequence to be processed.
+	 * @param filter Predicate which returns true for messages to be kept.
+	 * @return New sequence which does not contain mixed-channel tracks nor dropped messages.
+	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
+	 */
+	public static Sequence separateMixedChannel(Sequence sourceSeq, Predicate<MidiMessage> filter)
+			throws InvalidMidiDataException {
 		Sequence seq = new Sequence(sourceSeq.getDivisionType(), sourceSeq.getResolution());
 		
 		// process all input tracks
@@ -95,8 +117,10 @@ public class MidiUtil {
 						targetChannels.add(message.getChannel());
 					}
 					
-					Track targetTrack = targetTracks.get(targetIndex);
-					targetTrack.add(event);
+					if(filter.test(message)) {
+						Track targetTrack = targetTracks.get(targetIndex);
+						targetTrack.add(event);
+					}
 				} else {
 					// non-channel message
 					boolean addToAll = false;
@@ -111,7 +135,7 @@ public class MidiUtil {
 						for(Track targetTrack : targetTracks) {
 							targetTrack.add(event);
 						}
-					} else {
+					} else if(filter.test(event.getMessage())) {
 						targetTracks.get(0).add(event);
 					}
 				}
@@ -155,14 +179,393 @@ public class MidiUtil {
 		// events at different timing might be located at the same timing.
 		// As a result, there might be zero-length note and/or
 		// same control changes at the same timing.
-		//
-		// Probably, they should be removed for better conversion.
-		// I do not remove them anyway at the moment,
-		// because it does not cause any major problems.
+		// Zero-length notes are kept, because they come from short notes, such as drums,
+		// and the converter gives them an audible length.
+		if(resolution < sourceSeq.getResolution()) {
+			seq = removeRedundantEvents(seq);
+		}
 		
 		return seq;
 	}
 	
+	/**
+	 * Remove events which have no effect after retiming to a shorter resolution:
+	 * changes of volume, pan, expression or program overridden at the same tick
+	 * before any note starts, and changes to the current value.
+	 * Other control changes are kept as they are, because repeated values can be meaningful for them. (e.g. data entry)
+	 * 
+	 * @param sourceSeq Sequence to be processed.
+	 * @return New sequence without the redundant events.
+	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
+	 */
+	private static Sequence removeRedundantEvents(Sequence sourceSeq) throws InvalidMidiDataException {
+		Sequence seq = new Sequence(sourceSeq.getDivisionType(), sourceSeq.getResolution());
+		
+		// process all input tracks
+		// values are indexed by channel * 128 + controller, and MIDI_MAX_CHANNELS * 128 + channel for programs
+		int valueCount = MIDI_MAX_CHANNELS * 128 + MIDI_MAX_CHANNELS;
+		int[] lastIndices = new int[valueCount];
+		int[] lastNoteOnCounts = new int[valueCount];
+		int[] noteOnCounts = new int[MIDI_MAX_CHANNELS];
+		int[] values = new int[valueCount];
+		for(int trackIndex = 0; trackIndex < sourceSeq.getTracks().length; trackIndex++) {
+			Track sourceTrack = sourceSeq.getTracks()[trackIndex];
+			Track track = seq.createTrack();
+			boolean[] dropped = new boolean[sourceTrack.size()];
+			Arrays.fill(lastIndices, -1);
+			Arrays.fill(noteOnCounts, 0);
+			
+			// drop changes overridden at the same tick
+			for(int eventIndex = 0; eventIndex < sourceTrack.size(); eventIndex++) {
+				MidiEvent event = sourceTrack.get(eventIndex);
+				if(!(event.getMessage() instanceof ShortMessage)) {
+					continue;
+				}
+				
+				ShortMessage message = (ShortMessage) event.getMessage();
+				int channel = message.getChannel();
+				if(message.getCommand() == ShortMessage.NOTE_ON && message.getData2() != 0) {
+					noteOnCounts[channel]++;
+				} else {
+					int valueIndex = getValueIndex(message);
+					if(valueIndex != -1) {
+						int lastIndex = lastIndices[valueIndex];
+						if(lastIndex != -1 && sourceTrack.get(lastIndex).getTick() == event.getTick()
+								&& lastNoteOnCounts[valueIndex] == noteOnCounts[channel]) {
+							dropped[lastIndex] = true;
+						}
+						lastIndices[valueIndex] = eventIndex;
+						lastNoteOnCounts[valueIndex] = noteOnCounts[channel];
+					}
+				}
+			}
+			
+			// drop changes to the current value, and copy the kept events in the original order
+			Arrays.fill(values, -1);
+			for(int eventIndex = 0; eventIndex < sourceTrack.size(); eventIndex++) {
+				if(dropped[eventIndex]) {
+					continue;
+				}
+				
+				MidiEvent event = sourceTrack.get(eventIndex);
+				if(event.getMessage() instanceof ShortMessage) {
+					ShortMessage message = (ShortMessage) event.getMessage();
+					int valueIndex = getValueIndex(message);
+					if(valueIndex != -1) {
+						int value = (message.getCommand() == ShortMessage.PROGRAM_CHANGE) ? message.getData1()
+								: message.getData2();
+						if(values[valueIndex] == value) {
+							continue;
+						}
+						values[valueIndex] = value;
+					}
+				}
+				track.add(event);
+			}
+		}
+		return seq;
+	}
+	
+	/**
+	 * Get the index of the value changed by a volume, pan, expression or program change.
+	 */
+	private static int getValueIndex(ShortMessage message) {
+		if(message.getCommand() == ShortMessage.PROGRAM_CHANGE) {
+			return MIDI_MAX_CHANNELS * 128 + message.getChannel();
+		} else if(message.getCommand() == ShortMessage.CONTROL_CHANGE) {
+			int controller = message.getData1();
+			if(controller == CC_VOLUME || controller == CC_PAN || controller == CC_EXPRESSION) {
+				return message.getChannel() * 128 + controller;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Thin dense volume, pan and expression curves, such as ramps exported by a DAW.
+	 * A control change is dropped when its value is within maxError of the last kept value of the controller,
+	 * or when it comes sooner than minInterval after the last kept one. A dropped change is restored
+	 * when the controller stops changing for minInterval and the kept value is still off more than maxError,
+	 * so that a curve always settles near its final value. Tracks must not contain mixed channels.
+	 * 
+	 * @param sourceSeq   Sequence to be processed.
+	 * @param maxError    Maximum difference of values to be dropped.
+	 * @param minInterval Minimum ticks between kept changes of a controller.
+	 * @return New sequence without the dropped control changes.
+	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
+	 */
+	public static Sequence thinControlChanges(Sequence sourceSeq, int maxError, long minInterval)
+			throws InvalidMidiDataException {
+		Sequence seq = new Sequence(sourceSeq.getDivisionType(), sourceSeq.getResolution());
+		
+		// process all input tracks
+		int[] lastIndices = new int[128];
+		int[] pendingIndices = new int[128];
+		for(int trackIndex = 0; trackIndex < sourceSeq.getTracks().length; trackIndex++) {
+			Track sourceTrack = sourceSeq.getTracks()[trackIndex];
+			Track track = seq.createTrack();
+			boolean[] dropped = new boolean[sourceTrack.size()];
+			Arrays.fill(lastIndices, -1);
+			Arrays.fill(pendingIndices, -1);
+			
+			// decide events to be dropped, and restore the last one of each burst if needed
+			for(int eventIndex = 0; eventIndex < sourceTrack.size(); eventIndex++) {
+				MidiEvent event = sourceTrack.get(eventIndex);
+				int controller = getThinnedController(event);
+				if(controller == -1) {
+					continue;
+				}
+				
+				int pendingIndex = pendingIndices[controller];
+				if(pendingIndex != -1 && event.getTick() - sourceTrack.get(pendingIndex).getTick() >= minInterval) {
+					restoreControlChange(sourceTrack, dropped, lastIndices, pendingIndices, controller, maxError);
+				}
+				
+				int lastIndex = lastIndices[controller];
+				if(lastIndex == -1
+						|| (event.getTick() - sourceTrack.get(lastIndex).getTick() >= minInterval
+						&& Math.abs(getData2(event) - getData2(sourceTrack.get(lastIndex))) > maxError)) {
+					lastIndices[controller] = eventIndex;
+					pendingIndices[controller] = -1;
+				} else {
+					dropped[eventIndex] = true;
+					pendingIndices[controller] = eventIndex;
+				}
+			}
+			for(int controller = 0; controller < pendingIndices.length; controller++) {
+				if(pendingIndices[controller] != -1) {
+					restoreControlChange(sourceTrack, dropped, lastIndices, pendingIndices, controller, maxError);
+				}
+			}
+			
+			// copy the kept events in the original order
+			for(int eventIndex = 0; eventIndex < sourceTrack.size(); eventIndex++) {
+				if(!dropped[eventIndex]) {
+					track.add(sourceTrack.get(eventIndex));
+				}
+			}
+		}
+		return seq;
+	}
+	
+	private static void restoreControlChange(Track track, boolean[] dropped, int[] lastIndices, int[] pendingIndices,
+			int controller, int maxError) {
+		int pendingIndex = pendingIndices[controller];
+		if(Math.abs(getData2(track.get(pendingIndex)) - getData2(track.get(lastIndices[controller]))) > maxError) {
+			dropped[pendingIndex] = false;
+			lastIndices[controller] = pendingIndex;
+		}
+		pendingIndices[controller] = -1;
+	}
+	
+	private static int getThinnedController(MidiEvent event) {
+		if(event.getMessage() instanceof ShortMessage) {
+			ShortMessage message = (ShortMessage) event.getMessage();
+			if(message.getCommand() == ShortMessage.CONTROL_CHANGE) {
+				int controller = message.getData1();
+				if(controller == CC_VOLUME || controller == CC_PAN || controller == CC_EXPRESSION) {
+					return controller;
+				}
+			}
+		}
+		return -1;
+	}
+	
+	private static int getData2(MidiEvent event) {
+		return ((ShortMessage) event.getMessage()).getData2();
+	}
+	
+	/**
+	 * Extract the events of a tick range, moved to start from tick 0.
+	 * The state at the start of the range is restored at tick 0: the last tempo and time signature,
+	 * and the last program, volume, pan and expression of each channel which plays a note in the range.
+	 * Notes held at the start of the range are played again from it, and notes held at the end are stopped there.
+	 * The events of the range are found by binary search, and events after the range are never read,
+	 * but the state is restored by reading every event before the range.
+	 * 
+	 * @param sourceSeq Sequence to be processed.
+	 * @param startTick First tick of the range, which should be the start of a measure.
+	 * @param endTick   Tick after the last tick of the range.
+	 * @return New sequence of the range.
+	 * @throws InvalidMidiDataException throw if MIDI data is invalid.
+	 */
+	public static Sequence extractRange(Sequence sourceSeq, long startTick, long endTick)
+			throws InvalidMidiDataException {
+		if(startTick < 0 || endTick <= startTick) {
+			throw new IllegalArgumentException("Illegal tick range.");
+		}
+		
+		Sequence seq = new Sequence(sourceSeq.getDivisionType(), sourceSeq.getResolution());
+		Track[] sourceTracks = sourceSeq.getTracks();
+		int[] startIndices = new int[sourceTracks.length];
+		int[] endIndices = new int[sourceTracks.length];
+		for(int trackIndex = 0; trackIndex < sourceTracks.length; trackIndex++) {
+			startIndices[trackIndex] = getEventIndexByTick(sourceTracks[trackIndex], startTick);
+			endIndices[trackIndex] = getEventIndexByTick(sourceTracks[trackIndex], endTick);
+		}
+		
+		// tempo and time signature are global, restore the last one in any track
+		int[] globalTypes = { META_TEMPO, META_TIME_SIGNATURE };
+		int[] globalTrackIndices = new int[globalTypes.length];
+		MidiEvent[] globalEvents = new MidiEvent[globalTypes.length];
+		for(int typeIndex = 0; typeIndex < globalTypes.length; typeIndex++) {
+			globalTrackIndices[typeIndex] = -1;
+			for(int trackIndex = 0; trackIndex < sourceTracks.length; trackIndex++) {
+				Track sourceTrack = sourceTracks[trackIndex];
+				
+				// the range starts with a new one
+				for(int eventIndex = startIndices[trackIndex]; eventIndex < endIndices[trackIndex]
+						&& sourceTrack.get(eventIndex).getTick() == startTick; eventIndex++) {
+					if(isMetaEvent(sourceTrack.get(eventIndex), globalTypes[typeIndex])) {
+						globalEvents[typeIndex] = null;
+						globalTrackIndices[typeIndex] = sourceTracks.length;
+					}
+				}
+				if(globalTrackIndices[typeIndex] == sourceTracks.length) {
+					break;
+				}
+				
+				// the later track wins at the same tick
+				for(int eventIndex = startIndices[trackIndex] - 1; eventIndex >= 0; eventIndex--) {
+					MidiEvent event = sourceTrack.get(eventIndex);
+					if(isMetaEvent(event, globalTypes[typeIndex])) {
+						if(globalEvents[typeIndex] == null || event.getTick() >= globalEvents[typeIndex].getTick()) {
+							globalEvents[typeIndex] = event;
+							globalTrackIndices[typeIndex] = trackIndex;
+						}
+						break;
+					}
+				}
+			}
+		}
+		
+		// process all input tracks
+		MidiEvent[] lastValues = new MidiEvent[MIDI_MAX_CHANNELS * 128 + MIDI_MAX_CHANNELS];
+		MidiEvent[] heldNotes = new MidiEvent[MIDI_MAX_CHANNELS * 128];
+		boolean[] playedChannels = new boolean[MIDI_MAX_CHANNELS];
+		for(int trackIndex = 0; trackIndex < sourceTracks.length; trackIndex++) {
+			Track sourceTrack = sourceTracks[trackIndex];
+			Track track = seq.createTrack();
+			int startIndex = startIndices[trackIndex];
+			int endIndex = endIndices[trackIndex];
+			Arrays.fill(lastValues, null);
+			Arrays.fill(heldNotes, null);
+			Arrays.fill(playedChannels, false);
+			
+			for(int typeIndex = 0; typeIndex < globalTypes.length; typeIndex++) {
+				if(globalTrackIndices[typeIndex] == trackIndex) {
+					track.add(new MidiEvent(globalEvents[typeIndex].getMessage(), 0));
+				}
+			}
+			
+			// scan the state at the start of the range
+			for(int eventIndex = 0; eventIndex < startIndex; eventIndex++) {
+				MidiEvent event = sourceTrack.get(eventIndex);
+				if(event.getMessage() instanceof ShortMessage) {
+					ShortMessage message = (ShortMessage) event.getMessage();
+					int valueIndex = getValueIndex(message);
+					if(valueIndex != -1) {
+						lastValues[valueIndex] = event;
+					} else if(isNoteMessage(message)) {
+						heldNotes[message.getChannel() * 128 + message.getData1()] = isNoteOnMessage(message) ? event : null;
+					}
+				}
+			}
+			for(int eventIndex = startIndex; eventIndex < endIndex
+					&& sourceTrack.get(eventIndex).getTick() == startTick; eventIndex++) {
+				MidiMessage message = sourceTrack.get(eventIndex).getMessage();
+				if(message instanceof ShortMessage && isNoteMessage((ShortMessage) message)
+						&& !isNoteOnMessage((ShortMessage) message)) {
+					heldNotes[((ShortMessage) message).getChannel() * 128 + ((ShortMessage) message).getData1()] = null;
+				}
+			}
+			for(int eventIndex = startIndex; eventIndex < endIndex; eventIndex++) {
+				MidiMessage message = sourceTrack.get(eventIndex).getMessage();
+				if(message instanceof ShortMessage && isNoteOnMessage((ShortMessage) message)) {
+					playedChannels[((ShortMessage) message).getChannel()] = true;
+				}
+			}
+			for(MidiEvent event : heldNotes) {
+				if(event != null) {
+					playedChannels[((ShortMessage) event.getMessage()).getChannel()] = true;
+				}
+			}
+			
+			// restore the state, the controllers before the notes
+			for(MidiEvent event : lastValues) {
+				if(event != null && playedChannels[((ShortMessage) event.getMessage()).getChannel()]) {
+					track.add(new MidiEvent(event.getMessage(), 0));
+				}
+			}
+			int[] soundingCounts = new int[MIDI_MAX_CHANNELS * 128];
+			for(int noteIndex = 0; noteIndex < heldNotes.length; noteIndex++) {
+				if(heldNotes[noteIndex] != null) {
+					track.add(new MidiEvent(heldNotes[noteIndex].getMessage(), 0));
+					soundingCounts[noteIndex]++;
+				}
+			}
+			
+			// copy the range
+			for(int eventIndex = startIndex; eventIndex < endIndex; eventIndex++) {
+				MidiEvent event = sourceTrack.get(eventIndex);
+				if(isMetaEvent(event, META_END_OF_TRACK)) {
+					continue;
+				}
+				track.add(new MidiEvent(event.getMessage(), event.getTick() - startTick));
+				if(event.getMessage() instanceof ShortMessage && isNoteMessage((ShortMessage) event.getMessage())) {
+					ShortMessage message = (ShortMessage) event.getMessage();
+					int noteIndex = message.getChannel() * 128 + message.getData1();
+					if(isNoteOnMessage(message)) {
+						soundingCounts[noteIndex]++;
+					} else if(soundingCounts[noteIndex] > 0) {
+						soundingCounts[noteIndex]--;
+					}
+				}
+			}
+			
+			// stop the notes held at the end of the range
+			for(int noteIndex = 0; noteIndex < soundingCounts.length; noteIndex++) {
+				if(soundingCounts[noteIndex] > 0) {
+					ShortMessage message = new ShortMessage(ShortMessage.NOTE_OFF, noteIndex / 128, noteIndex % 128, 0);
+					track.add(new MidiEvent(message, endTick - startTick));
+				}
+			}
+			long endOfTrackTick = Math.min(sourceTrack.get(sourceTrack.size() - 1).getTick(), endTick);
+			track.add(new MidiEvent(new MetaMessage(META_END_OF_TRACK, new byte[0], 0),
+					Math.max(endOfTrackTick - startTick, 0)));
+		}
+		return seq;
+	}
+	
+	/**
+	 * Get the index of the first event at or after a tick.
+	 */
+	private static int getEventIndexByTick(Track track, long tick) {
+		int low = 0;
+		int high = track.size();
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(track.get(middle).getTick() < tick) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+	
+	private static boolean isMetaEvent(MidiEvent event, int type) {
+		return event.getMessage() instanceof MetaMessage && ((MetaMessage) event.getMessage()).getType() == type;
+	}
+	
+	private static boolean isNoteMessage(ShortMessage message) {
+		return message.getCommand() == ShortMessage.NOTE_ON || message.getCommand() == ShortMessage.NOTE_OFF;
+	}
+	
+	private static boolean isNoteOnMessage(ShortMessage message) {
+		return message.getCommand() == ShortMessage.NOTE_ON && message.getData2() != 0;
+	}
+	
 	/**
 	 * Change resolution (TPQN) without retiming events.
 	 * 
@@ -194,6 +597,9 @@ public class MidiUtil {
 				if(adjustTempo && event.getMessage() instanceof MetaMessage) {
 					MetaMessage message = (MetaMessage) event.getMessage();
 					if(message.getType() == MidiUtil.META_TEMPO) {
+						// the source sequence can be converted again, do not modify its message
+						message = (MetaMessage) message.clone();
+						event = new MidiEvent(message, sourceEvent.getTick());
 						byte[] data = message.getData();
 						if(data.length != 3) {
 							throw new InvalidMidiDataException("Illegal tempo event.");
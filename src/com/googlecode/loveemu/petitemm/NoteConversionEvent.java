@@ -0,0 +1,31 @@
+package com.googlecode.loveemu.petitemm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event for a slow conversion of a single note or rest.
+ */
+@Name("petitemm.NoteConversion")
+@Label("Note Conversion")
+@Category("PetiteMM")
+@Description("Conversion of a note or rest to MML, recorded only when it is slow")
+@Threshold("1 ms")
+class NoteConversionEvent extends jdk.jfr.Event {
+
+	@Label("Track Index")
+	int trackIndex;
+
+	@Label("Start Tick")
+	long startTick;
+
+	@Label("End Tick")
+	long endTick;
+
+	@Label("Note Number")
+	@Description("MIDI note number, -1000 for a rest")
+	int noteNumber;
+}
@@ -0,0 +1,27 @@
+package com.googlecode.loveemu.petitemm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event for a slow rendering of MML events of a track.
+ */
+@Name("petitemm.TrackRender")
+@Label("Track Render")
+@Category("PetiteMM")
+@Description("Rendering of the MML events of a track to text, recorded only when it is slow")
+@Threshold("10 ms")
+class TrackRenderEvent extends jdk.jfr.Event {
+
+	@Label("Track Index")
+	int trackIndex;
+
+	@Label("End Tick")
+	long endTick;
+
+	@Label("MML Events")
+	long mmlEvents;
+}